@@ -0,0 +1,112 @@
+package com.kamwithk.ankiconnectandroid.routing.database;
+
+import android.content.Context;
+import android.database.Cursor;
+
+import androidx.room.Room;
+import androidx.sqlite.db.SimpleSQLiteQuery;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the local audio lookup searches the indexes that EntriesDatabaseOptimizer creates,
+ * instead of scanning the entries table.
+ */
+@RunWith(AndroidJUnit4.class)
+public class EntriesDatabaseOptimizerTest {
+    private File databaseFile;
+    private EntriesDatabase database;
+    private SupportSQLiteDatabase sqlite;
+
+    @Before
+    public void createDatabase() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        databaseFile = new File(context.getCacheDir(), "entries-optimizer-test.db");
+        context.deleteDatabase(databaseFile.getPath());
+
+        database = Room.databaseBuilder(context, EntriesDatabase.class, databaseFile.getPath()).build();
+        sqlite = database.getOpenHelper().getWritableDatabase();
+
+        String[][] entries = {
+                {"日本", "にほん", "nhk16", null},
+                {"日本", "にっぽん", "nhk16", null},
+                {"日本", "ニホン", "forvo", "speaker"},
+                {"本", "ほん", "shinmeikai8", null},
+                {"本", "ほん", "forvo", "other"},
+        };
+        for (int i = 0; i < 50; i++) {
+            for (String[] entry : entries) {
+                sqlite.execSQL("INSERT INTO entries (expression, reading, source, speaker, display, file) " +
+                                "VALUES (?, ?, ?, ?, ?, ?)",
+                        new Object[]{entry[0] + i, entry[1], entry[2], entry[3], entry[1], i + ".mp3"});
+            }
+        }
+    }
+
+    @After
+    public void deleteDatabase() {
+        database.close();
+        InstrumentationRegistry.getInstrumentation().getTargetContext().deleteDatabase(databaseFile.getPath());
+    }
+
+    @Test
+    public void lookupUsesIndexAfterOptimizing() {
+        EntriesDatabaseOptimizer.optimize(sqlite, databaseFile, false);
+        assertTrue(EntriesDatabaseOptimizer.hasNormalizedReadings(sqlite));
+
+        List<String> sources = List.of("nhk16", "forvo", "shinmeikai8");
+        List<String> noUsers = new ArrayList<>();
+        List<String> users = List.of("speaker");
+
+        List<SimpleSQLiteQuery> queries = new ArrayList<>();
+        for (boolean normalizedReadings : new boolean[]{false, true}) {
+            queries.add(AudioSourcesQuery.createQueryPlan("日本1", "にほん", sources, noUsers, false, normalizedReadings));
+            queries.add(AudioSourcesQuery.createQueryPlan("日本1", "にほん", sources, users, false, normalizedReadings));
+            queries.add(AudioSourcesQuery.createQueryPlan("日本1", "にほん", sources, noUsers, true, normalizedReadings));
+            queries.add(AudioSourcesQuery.createQueryPlan("日本1", "にほん", sources, users, true, normalizedReadings));
+        }
+
+        for (SimpleSQLiteQuery query : queries) {
+            for (String detail : getPlan(query)) {
+                // "SCAN TABLE entries" on older versions of SQLite
+                assertFalse(query.getSql() + "\n" + detail, detail.startsWith("SCAN entries"));
+                assertFalse(query.getSql() + "\n" + detail, detail.startsWith("SCAN TABLE entries"));
+            }
+        }
+        assertTrue(EntriesDatabaseOptimizer.usesLookupIndex(sqlite));
+    }
+
+    @Test
+    public void normalizedReadingFindsKatakana() {
+        EntriesDatabaseOptimizer.optimize(sqlite, databaseFile, false);
+
+        List<String> sources = List.of("forvo");
+        try (Cursor cursor = sqlite.query(AudioSourcesQuery.create("日本1", "にほん", sources, new ArrayList<>(), true, true))) {
+            assertTrue(cursor.moveToFirst());
+            assertEquals("ニホン", cursor.getString(cursor.getColumnIndexOrThrow("reading")));
+        }
+    }
+
+    private List<String> getPlan(SimpleSQLiteQuery query) {
+        List<String> details = new ArrayList<>();
+        try (Cursor cursor = sqlite.query(query)) {
+            int detailIndex = cursor.getColumnIndexOrThrow("detail");
+            while (cursor.moveToNext()) {
+                details.add(cursor.getString(detailIndex));
+            }
+        }
+        return details;
+    }
+}
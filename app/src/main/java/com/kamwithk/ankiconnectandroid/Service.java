@@ -8,7 +8,10 @@ import android.os.IBinder;
 import android.util.Log;
 import androidx.annotation.Nullable;
 import androidx.core.app.NotificationCompat;
+import com.kamwithk.ankiconnectandroid.ankidroid_api.MediaSpool;
+import com.kamwithk.ankiconnectandroid.routing.LocalAudioCache;
 import com.kamwithk.ankiconnectandroid.routing.Router;
+import com.kamwithk.ankiconnectandroid.routing.database.EntriesDatabaseManager;
 
 import java.io.IOException;
 
@@ -23,6 +26,10 @@ public class Service extends android.app.Service {
     public void onCreate() { // Only one time
         super.onCreate();
 
+        EntriesDatabaseManager.prepareInBackground(this);
+        // nothing is being stored yet, so anything in the spool was left over from before
+        MediaSpool.getInstance(this).sweep();
+
         try {
             server = new Router(PORT, this);
         } catch (IOException e) {
@@ -54,6 +61,12 @@ public class Service extends android.app.Service {
         return START_STICKY;
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        LocalAudioCache.onTrimMemory(level);
+    }
+
     @Override
     public void onDestroy() {
         server.stop();
@@ -4,16 +4,27 @@ import android.content.Context;
 import android.content.Intent;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.provider.Settings;
+import android.text.InputType;
+import android.util.Log;
 import android.widget.Toast;
 
 import androidx.appcompat.app.ActionBar;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.appcompat.widget.Toolbar;
+import androidx.core.app.NotificationCompat;
+import androidx.core.app.NotificationManagerCompat;
 import androidx.preference.EditTextPreference;
 import androidx.preference.Preference;
 import androidx.preference.PreferenceFragmentCompat;
 
+import com.kamwithk.ankiconnectandroid.routing.LocalAudioAPIRouting;
+import com.kamwithk.ankiconnectandroid.routing.database.EntriesDatabaseBuilder;
+
+import static com.kamwithk.ankiconnectandroid.MainActivity.CHANNEL_ID;
+
 
 public class SettingsActivity extends AppCompatActivity {
 
@@ -76,11 +87,112 @@ public class SettingsActivity extends AppCompatActivity {
 
             }
 
+            preference = findPreference("build_local_audio_db");
+            if (preference != null) {
+                // custom handler of preference: build the local audio database in the background
+                preference.setOnPreferenceClickListener(p -> {
+                    Context context = getContext();
+                    if (context == null) {
+                        return true;
+                    }
+                    if (EntriesDatabaseBuilder.isRunning()) {
+                        Toast.makeText(context, "The local audio database is already being built.", Toast.LENGTH_LONG).show();
+                    } else {
+                        Toast.makeText(context, "Building the local audio database...", Toast.LENGTH_LONG).show();
+                        buildLocalAudioDatabase(context.getApplicationContext());
+                    }
+                    return true;
+                });
+            }
+
+           EditTextPreference localAudioCacheSizePreference = findPreference("local_audio_cache_size");
+           if (localAudioCacheSizePreference != null) {
+                localAudioCacheSizePreference.setOnBindEditTextListener(editText -> editText.setInputType(InputType.TYPE_CLASS_NUMBER));
+           }
+
+           EditTextPreference localAudioFilterFppPreference = findPreference("local_audio_filter_fpp");
+           if (localAudioFilterFppPreference != null) {
+                localAudioFilterFppPreference.setOnBindEditTextListener(editText ->
+                        editText.setInputType(InputType.TYPE_CLASS_NUMBER | InputType.TYPE_NUMBER_FLAG_DECIMAL));
+           }
+
+           EditTextPreference localAudioFilterMaxSizePreference = findPreference("local_audio_filter_max_size");
+           if (localAudioFilterMaxSizePreference != null) {
+                localAudioFilterMaxSizePreference.setOnBindEditTextListener(editText -> editText.setInputType(InputType.TYPE_CLASS_NUMBER));
+           }
+
+           EditTextPreference mediaPathAllowListPreference = findPreference("media_path_allow_list");
+           if (mediaPathAllowListPreference != null) {
+                mediaPathAllowListPreference.setOnBindEditTextListener(editText ->
+                        editText.setInputType(InputType.TYPE_CLASS_TEXT | InputType.TYPE_TEXT_FLAG_MULTI_LINE));
+           }
+
+           EditTextPreference mediaImageMaxSizePreference = findPreference("media_image_max_size");
+           if (mediaImageMaxSizePreference != null) {
+                mediaImageMaxSizePreference.setOnBindEditTextListener(editText -> editText.setInputType(InputType.TYPE_CLASS_NUMBER));
+           }
+
+           EditTextPreference mediaImageQualityPreference = findPreference("media_image_quality");
+           if (mediaImageQualityPreference != null) {
+                mediaImageQualityPreference.setOnBindEditTextListener(editText -> editText.setInputType(InputType.TYPE_CLASS_NUMBER));
+           }
+
            EditTextPreference corsHostPreference = findPreference("cors_hostname");
            if (corsHostPreference != null) {
                 corsHostPreference.setOnBindEditTextListener(editText -> editText.setHint("e.g. http://example.com"));            }
         }
+
+        private static final int BUILD_NOTIFICATION_ID = 2;
+
+        /**
+         * Builds the local audio database on a background thread, with the progress shown in a notification.
+         */
+        private static void buildLocalAudioDatabase(Context context) {
+            NotificationManagerCompat notificationManager = NotificationManagerCompat.from(context);
+            NotificationCompat.Builder notification = new NotificationCompat.Builder(context, CHANNEL_ID)
+                    .setContentTitle("Building local audio database")
+                    .setSmallIcon(R.mipmap.app_launcher)
+                    .setOnlyAlertOnce(true)
+                    .setOngoing(true);
+
+            boolean includeAudioData = !LocalAudioAPIRouting.useMediaFiles(context);
+            EntriesDatabaseBuilder builder = new EntriesDatabaseBuilder(context,
+                    LocalAudioAPIRouting.createSources().values(), includeAudioData);
+
+            new Thread(() -> {
+                String result;
+                try {
+                    builder.build((sourcesDone, sourcesTotal, entriesWritten) -> {
+                        notification.setContentText(entriesWritten + " entries added")
+                                .setProgress(sourcesTotal, sourcesDone, false);
+                        showNotification(notificationManager, notification);
+                    });
+                    result = "Finished building the local audio database";
+                } catch (Exception e) {
+                    Log.w("AnkiConnectAndroid", "Could not build the local audio database", e);
+                    result = "Could not build the local audio database: " + e.getMessage();
+                }
+
+                notification.setContentText(result)
+                        .setProgress(0, 0, false)
+                        .setOngoing(false);
+                showNotification(notificationManager, notification);
+
+                String message = result;
+                new Handler(Looper.getMainLooper()).post(() -> Toast.makeText(context, message, Toast.LENGTH_LONG).show());
+            }).start();
+        }
+
+        private static void showNotification(NotificationManagerCompat notificationManager, NotificationCompat.Builder notification) {
+            if (notificationManager.areNotificationsEnabled()) {
+                try {
+                    notificationManager.notify(BUILD_NOTIFICATION_ID, notification.build());
+                } catch (SecurityException e) {
+                    Log.w("AnkiConnectAndroid", "Could not show notification", e);
+                }
+            }
+        }
     }
 
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,214 @@
+package com.kamwithk.ankiconnectandroid.ankidroid_api;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.media.ExifInterface;
+import android.os.Build;
+import android.util.Log;
+
+import androidx.preference.PreferenceManager;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shrinks pictures before they are added to the collection, i.e. full resolution screenshots.
+ *
+ * Pictures that are larger than the maximum size (on their longer edge) are scaled down and encoded
+ * again as WebP or JPEG. They are decoded at a lower resolution to begin with (see
+ * BitmapFactory.Options.inSampleSize), so a large picture never has to fit into memory at its full
+ * size. Pictures that are already small enough are stored as they are.
+ *
+ * The encoded pictures don't keep the EXIF data of the original, so a picture that is only shown
+ * upright because of its EXIF orientation (i.e. a photo taken with the phone held sideways) is rotated
+ * when it is resized instead.
+ */
+public class ImageResizer {
+    public static final String MAX_SIZE_PREFERENCE_KEY = "media_image_max_size";
+    public static final String FORMAT_PREFERENCE_KEY = "media_image_format";
+    public static final String QUALITY_PREFERENCE_KEY = "media_image_quality";
+    public static final String DEFAULT_MAX_SIZE = "0";
+    public static final String DEFAULT_FORMAT = "webp";
+    public static final String DEFAULT_QUALITY = "80";
+
+    private static final AtomicLong totalBytesSaved = new AtomicLong();
+
+    private final int maxSize;
+    private final String format;
+    private final int quality;
+
+    private ImageResizer(int maxSize, String format, int quality) {
+        this.maxSize = maxSize;
+        this.format = format;
+        this.quality = quality;
+    }
+
+    /**
+     * @return the resizer for the current settings, or null if pictures aren't resized
+     */
+    public static ImageResizer fromPreferences(Context context) {
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        int maxSize = parsePreference(preferences, MAX_SIZE_PREFERENCE_KEY, DEFAULT_MAX_SIZE);
+        if (maxSize <= 0) {
+            return null;
+        }
+        String format = "jpeg".equals(preferences.getString(FORMAT_PREFERENCE_KEY, DEFAULT_FORMAT)) ? "jpeg" : "webp";
+        int quality = Math.max(0, Math.min(100, parsePreference(preferences, QUALITY_PREFERENCE_KEY, DEFAULT_QUALITY)));
+        return new ImageResizer(maxSize, format, quality);
+    }
+
+    private static int parsePreference(SharedPreferences preferences, String key, String defaultValue) {
+        try {
+            return Integer.parseInt(preferences.getString(key, defaultValue).trim());
+        } catch (NumberFormatException e) {
+            return Integer.parseInt(defaultValue);
+        }
+    }
+
+    /**
+     * Identifies the settings, as the same picture is stored differently with different settings.
+     */
+    public String getKey() {
+        return format + "-" + maxSize + "-" + quality;
+    }
+
+    /**
+     * @return the filename with the extension of the format that resized pictures are encoded in
+     */
+    public String getFilename(String filename) {
+        int extensionStart = filename.lastIndexOf('.');
+        if (extensionStart > filename.lastIndexOf('/')) {
+            filename = filename.substring(0, extensionStart);
+        }
+        return filename + (format.equals("jpeg") ? ".jpg" : ".webp");
+    }
+
+    /**
+     * Writes a smaller version of the picture to output.
+     *
+     * @return false if the picture should be stored as it is instead, i.e. because it is already small
+     * enough, it can't be decoded (i.e. SVG), it could be animated (GIF), or the result isn't smaller
+     */
+    public boolean resize(File input, File output) throws IOException {
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(input.getPath(), bounds);
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0 || "image/gif".equals(bounds.outMimeType)) {
+            return false;
+        }
+        int longEdge = Math.max(bounds.outWidth, bounds.outHeight);
+        if (longEdge <= maxSize) {
+            return false;
+        }
+
+        // the largest power of two that still decodes to at least the maximum size
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = 1;
+        while (longEdge / (options.inSampleSize * 2) >= maxSize) {
+            options.inSampleSize *= 2;
+        }
+        Bitmap bitmap = BitmapFactory.decodeFile(input.getPath(), options);
+        if (bitmap == null) {
+            return false;
+        }
+
+        try {
+            Matrix matrix = getOrientationMatrix(input);
+            float scale = (float) maxSize / Math.max(bitmap.getWidth(), bitmap.getHeight());
+            if (scale < 1) {
+                // scaled first, so that only the smaller picture is rotated
+                matrix.preScale(scale, scale);
+            }
+            if (!matrix.isIdentity()) {
+                Bitmap transformed = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+                if (transformed != bitmap) {
+                    bitmap.recycle();
+                    bitmap = transformed;
+                }
+            }
+            if (format.equals("jpeg") && bitmap.hasAlpha()) {
+                // JPEG has no transparency, which would turn black otherwise
+                Bitmap opaque = Bitmap.createBitmap(bitmap.getWidth(), bitmap.getHeight(), Bitmap.Config.ARGB_8888);
+                Canvas canvas = new Canvas(opaque);
+                canvas.drawColor(Color.WHITE);
+                canvas.drawBitmap(bitmap, 0, 0, null);
+                bitmap.recycle();
+                bitmap = opaque;
+            }
+
+            try (FileOutputStream out = new FileOutputStream(output)) {
+                if (!bitmap.compress(getCompressFormat(), quality, out)) {
+                    return false;
+                }
+            }
+        } finally {
+            bitmap.recycle();
+        }
+
+        long saved = input.length() - output.length();
+        if (saved <= 0) {
+            return false;
+        }
+        Log.i("AnkiConnectAndroid", "Resized a picture from " + bounds.outWidth + "x" + bounds.outHeight +
+                " (" + input.length() / 1024 + " KB) to " + output.length() / 1024 + " KB, " +
+                totalBytesSaved.addAndGet(saved) / 1024 + " KB saved in total");
+        return true;
+    }
+
+    /**
+     * @return the transformation that shows the picture upright, according to its EXIF orientation
+     */
+    private static Matrix getOrientationMatrix(File input) {
+        int orientation;
+        try {
+            orientation = new ExifInterface(input.getPath())
+                    .getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
+        } catch (IOException e) {
+            // i.e. a format without EXIF data
+            orientation = ExifInterface.ORIENTATION_NORMAL;
+        }
+
+        Matrix matrix = new Matrix();
+        switch (orientation) {
+            case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
+                matrix.setScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                matrix.setRotate(180);
+                break;
+            case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+                matrix.setScale(1, -1);
+                break;
+            case ExifInterface.ORIENTATION_TRANSPOSE:
+                matrix.setRotate(90);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                matrix.setRotate(90);
+                break;
+            case ExifInterface.ORIENTATION_TRANSVERSE:
+                matrix.setRotate(-90);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                matrix.setRotate(-90);
+                break;
+        }
+        return matrix;
+    }
+
+    @SuppressWarnings("deprecation")
+    private Bitmap.CompressFormat getCompressFormat() {
+        if (format.equals("jpeg")) {
+            return Bitmap.CompressFormat.JPEG;
+        }
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.R ? Bitmap.CompressFormat.WEBP_LOSSY : Bitmap.CompressFormat.WEBP;
+    }
+}
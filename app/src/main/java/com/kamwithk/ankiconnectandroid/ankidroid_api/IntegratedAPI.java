@@ -14,7 +14,12 @@ import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static com.ichi2.anki.api.AddContentApi.READ_WRITE_PERMISSION;
 
@@ -22,6 +27,7 @@ import com.kamwithk.ankiconnectandroid.request_parsers.MediaRequest;
 import com.ichi2.anki.FlashCardsContract;
 import com.ichi2.anki.api.AddContentApi;
 import com.kamwithk.ankiconnectandroid.request_parsers.NoteRequest;
+import com.kamwithk.ankiconnectandroid.request_parsers.NoteUpdateRequest;
 
 public class IntegratedAPI {
     private Context context;
@@ -33,6 +39,12 @@ public class IntegratedAPI {
 
     //From anki-connect repo
     private static final String CAN_ADD_ERROR_REASON = "cannot create note because it is a duplicate";
+
+    // Media is downloaded and stored in parallel, but limited so that a request with lots of media
+    // doesn't open too many connections at once
+    private static final int MEDIA_THREADS = 4;
+    private static final ExecutorService MEDIA_EXECUTOR = Executors.newFixedThreadPool(MEDIA_THREADS);
+
     public IntegratedAPI(Context context) {
         this.context = context;
 
@@ -258,6 +270,25 @@ public class IntegratedAPI {
     public Long addNote(final Map<String, String> data, String deck_name, String model_name, Set<String> tags) throws Exception {
         Long deck_id = deckAPI.getDeckID(deck_name);
         Long model_id = modelAPI.getModelID(model_name, data.size());
+        return addNote(data, deck_id, model_id, tags);
+    }
+
+    /**
+     * Same as addNote(), but adds the media to the note first. The media is downloaded and stored
+     * while the deck and model are looked up.
+     */
+    public Long addNote(final Map<String, String> data, String deck_name, String model_name, Set<String> tags,
+                        List<MediaRequest> mediaRequests) throws Exception {
+        List<Future<String>> storedMedia = storeMediaAsync(mediaRequests);
+
+        Long deck_id = deckAPI.getDeckID(deck_name);
+        Long model_id = modelAPI.getModelID(model_name, countFields(data, mediaRequests));
+
+        addMedia(data, mediaRequests, storedMedia);
+        return addNote(data, deck_id, model_id, tags);
+    }
+
+    private Long addNote(final Map<String, String> data, Long deck_id, Long model_id, Set<String> tags) throws Exception {
         Long note_id = noteAPI.addNote(data, deck_id, model_id, tags);
 
         if (note_id != null) {
@@ -277,18 +308,53 @@ public class IntegratedAPI {
      * @throws Exception
      */
     public void addMedia(Map<String, String> noteValues, List<MediaRequest> mediaRequests) throws Exception {
+        addMedia(noteValues, mediaRequests, storeMediaAsync(mediaRequests));
+    }
+
+    /**
+     * Starts downloading and storing the media on the media pool, so that other work (i.e. looking up
+     * the deck and model) can happen at the same time. Use addMedia() with the result to wait for them.
+     */
+    public List<Future<String>> storeMediaAsync(List<MediaRequest> mediaRequests) {
+        List<Future<String>> storedMedia = new ArrayList<>(mediaRequests.size());
         for (MediaRequest media : mediaRequests) {
-            // mediaAPI.storeMediaFile() doesn't store as the passed in filename, need to use the returned one
-            Optional<byte[]> data = media.getData();
-            Optional<String> url = media.getUrl();
-            String stored_filename;
-            if (data.isPresent()) {
-                stored_filename = mediaAPI.storeMediaFile(media.getFilename(), data.get());
-            } else if (url.isPresent()) {
-                stored_filename = mediaAPI.downloadAndStoreBinaryFile(media.getFilename(), url.get());
-            } else {
-                throw new Exception("You must provide a \"data\" or \"url\" field. Note that \"path\" is currently not supported on AnkiConnectAndroid.");
-            }
+            storedMedia.add(MEDIA_EXECUTOR.submit(() -> storeMedia(media)));
+        }
+        return storedMedia;
+    }
+
+    /**
+     * @return the filename that the media was stored as
+     */
+    private String storeMedia(MediaRequest media) throws Exception {
+        // mediaAPI.storeMediaFile() doesn't store as the passed in filename, need to use the returned one
+        Optional<byte[]> data = media.getData();
+        Optional<String> url = media.getUrl();
+        Optional<String> path = media.getPath();
+        // large pictures are resized on the way, if it is turned on
+        MediaAPI mediaAPI = media.getMediaType() == MediaRequest.MediaType.PICTURE ? this.mediaAPI.forPictures() : this.mediaAPI;
+        if (data.isPresent()) {
+            return mediaAPI.storeMediaFile(media.getFilename(), data.get());
+        } else if (url.isPresent()) {
+            return mediaAPI.downloadAndStoreBinaryFile(media.getFilename(), url.get());
+        } else if (path.isPresent()) {
+            return mediaAPI.storeLocalMediaFile(media.getFilename(), path.get());
+        } else {
+            throw new Exception("You must provide a \"data\", \"url\" or \"path\" field.");
+        }
+    }
+
+    /**
+     * Waits for the media started by storeMediaAsync(), and updates noteValues. The fields are updated
+     * in the order of the requests, regardless of which media finished first.
+     */
+    public void addMedia(Map<String, String> noteValues, List<MediaRequest> mediaRequests,
+                         List<Future<String>> storedMedia) throws Exception {
+        List<String> storedFilenames = waitForMedia(storedMedia);
+
+        for (int i = 0; i < mediaRequests.size(); i++) {
+            MediaRequest media = mediaRequests.get(i);
+            String stored_filename = storedFilenames.get(i);
 
             String enclosed_filename = "";
             switch (media.getMediaType()) {
@@ -313,6 +379,47 @@ public class IntegratedAPI {
         }
     }
 
+    /**
+     * Cancels the media started by storeMediaAsync() for a note that won't be updated. Media that was
+     * already stored is left in the collection.
+     */
+    private static void cancelMedia(List<Future<String>> storedMedia) {
+        for (Future<String> future : storedMedia) {
+            future.cancel(true);
+        }
+    }
+
+    private static List<String> waitForMedia(List<Future<String>> storedMedia) throws Exception {
+        List<String> storedFilenames = new ArrayList<>(storedMedia.size());
+        Exception error = null;
+        // waits for all of them even if one fails, so that no media is still being stored afterwards
+        for (Future<String> future : storedMedia) {
+            try {
+                storedFilenames.add(future.get());
+            } catch (ExecutionException e) {
+                if (error == null) {
+                    error = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+        return storedFilenames;
+    }
+
+    /**
+     * The number of fields the note will have after the media is added to it, which is needed to find
+     * the model before the media is stored.
+     */
+    private static int countFields(Map<String, String> noteValues, List<MediaRequest> mediaRequests) {
+        Set<String> fields = new HashSet<>(noteValues.keySet());
+        for (MediaRequest media : mediaRequests) {
+            fields.addAll(media.getFields());
+        }
+        return fields.size();
+    }
+
     public void updateNoteFields(long note_id, Map<String, String> newFields, ArrayList<MediaRequest> mediaRequests) throws Exception {
         /*
          * updateNoteFields request looks like:
@@ -328,15 +435,142 @@ public class IntegratedAPI {
          *         + more fields that are currently unsupported
          *      }
          * ]
-         *
+         */
+        updateNotesFields(Collections.singletonList(new NoteUpdateRequest(note_id, newFields, mediaRequests)), true);
+    }
+
+    public static class UpdateWithError {
+        private final boolean updated;
+        private final String error;
+
+        public UpdateWithError(boolean updated, String error) {
+            this.updated = updated;
+            this.error = error;
+        }
+
+        public boolean isUpdated() {
+            return updated;
+        }
+
+        public String getError() {
+            return error;
+        }
+    }
+
+    public List<UpdateWithError> updateNotesFieldsWithErrorDetail(List<NoteUpdateRequest> updates) throws Exception {
+        List<UpdateWithError> updateWithErrorList = new ArrayList<>();
+        for (Exception error : updateNotesFields(updates, false)) {
+            if (error == null) {
+                updateWithErrorList.add(new UpdateWithError(true, null));
+            } else {
+                updateWithErrorList.add(new UpdateWithError(false, error.getMessage()));
+            }
+        }
+        return updateWithErrorList;
+    }
+
+    /**
+     * Same as updateNoteFields() for each note, but all notes are read with a single query and
+     * updated with a single batch, instead of several calls to AnkiDroid for every note.
+     *
+     * @param stopAtError whether to throw the error of the first note that can't be updated (after
+     *                    updating the notes before it), like separate updateNoteFields() calls would
+     * @return the error of each note, or null if it was updated
+     */
+    public List<Exception> updateNotesFields(List<NoteUpdateRequest> updates, boolean stopAtError) throws Exception {
+        // the media of all notes is stored while the notes are read
+        List<List<Future<String>>> storedMedia = new ArrayList<>();
+        List<Long> noteIds = new ArrayList<>();
+        for (NoteUpdateRequest update : updates) {
+            storedMedia.add(storeMediaAsync(update.getMediaRequests()));
+            noteIds.add(update.getId());
+        }
+        Map<Long, NoteAPI.NoteFields> notes;
+        try {
+            notes = noteAPI.getNotesFields(noteIds);
+        } catch (Exception e) {
+            for (List<Future<String>> noteMedia : storedMedia) {
+                cancelMedia(noteMedia);
+            }
+            throw e;
+        }
+
+        // the current field names of each model, asked once per batch (see NoteAPI.getFieldList())
+        Map<Long, String[]> modelFieldNames = new HashMap<>();
+
+        Exception[] errors = new Exception[updates.size()];
+        Exception stoppedAt = null;
+        List<Integer> batchIndices = new ArrayList<>();
+        List<Long> batchIds = new ArrayList<>();
+        List<String[]> batchFields = new ArrayList<>();
+        for (int i = 0; i < updates.size(); i++) {
+            NoteUpdateRequest update = updates.get(i);
+            try {
+                NoteAPI.NoteFields note = notes.get(update.getId());
+                if (note == null) {
+                    throw new Exception("Note was not found: " + update.getId());
+                }
+                String[] fieldNames = modelFieldNames.get(note.getModelId());
+                if (fieldNames == null) {
+                    fieldNames = noteAPI.getFieldList(note.getModelId());
+                    if (fieldNames == null) {
+                        throw new Exception("Couldn't get fields");
+                    }
+                    modelFieldNames.put(note.getModelId(), fieldNames);
+                }
+                String[] fields = getUpdatedFields(note, fieldNames, update, storedMedia.get(i));
+                // a later update of the same note builds on this one, as separate calls would
+                notes.put(update.getId(), new NoteAPI.NoteFields(update.getId(), note.getModelId(), fields));
+                batchFields.add(fields);
+                batchIds.add(update.getId());
+                batchIndices.add(i);
+            } catch (Exception e) {
+                errors[i] = e;
+                // i.e. if the note wasn't found before its media was waited for
+                cancelMedia(storedMedia.get(i));
+                if (stopAtError) {
+                    stoppedAt = e;
+                    // the notes after this one aren't updated either
+                    for (List<Future<String>> noteMedia : storedMedia.subList(i + 1, storedMedia.size())) {
+                        cancelMedia(noteMedia);
+                    }
+                    break;
+                }
+            }
+        }
+
+        Exception[] batchErrors = noteAPI.updateNotesFields(batchIds, batchFields);
+        for (int i = 0; i < batchErrors.length; i++) {
+            if (batchErrors[i] != null) {
+                if (stopAtError) {
+                    throw batchErrors[i];
+                }
+                errors[batchIndices.get(i)] = batchErrors[i];
+            }
+        }
+        if (stoppedAt != null) {
+            throw stoppedAt;
+        }
+        return Arrays.asList(errors);
+    }
+
+    /**
+     * @return the complete fields of the note after the update, in the order of its model
+     */
+    private String[] getUpdatedFields(NoteAPI.NoteFields note, String[] modelFieldNames, NoteUpdateRequest update,
+                                      List<Future<String>> storedMedia) throws Exception {
+        /*
          * Fields is an incomplete list of fields, and the Anki API expects the the passed in field
          * list to be complete. So, need to get the existing fields and only update them if present
          * in the request. Also need to reverse map each media file back to the field it will be
          * included in and append it enclosed in either <img> or [sound: ]
          */
-
-        String[] modelFieldNames = modelAPI.modelFieldNames(noteAPI.getNoteModelId(note_id));
-        String[] originalFields = noteAPI.getNoteFields(note_id);
+        String[] originalFields = note.getFields();
+        if (originalFields == null || originalFields.length != modelFieldNames.length) {
+            // the model was changed after the note was read
+            throw new Exception("The fields of note " + note.getNoteId() + " don't match its model");
+        }
+        Map<String, String> newFields = update.getFields();
 
         // updated fields
         HashMap<String, String> cardFields = new HashMap<>();
@@ -358,14 +592,23 @@ public class IntegratedAPI {
             }
         }
 
-        addMedia(cardFields, mediaRequests);
-        noteAPI.updateNoteFields(note_id, cardFields);
+        addMedia(cardFields, update.getMediaRequests(), storedMedia);
+
+        String[] fields = new String[modelFieldNames.length];
+        for (int i = 0; i < modelFieldNames.length; i++) {
+            fields[i] = cardFields.get(modelFieldNames[i]);
+        }
+        return fields;
     }
 
     public String storeMediaFile(BinaryFile binaryFile) throws IOException {
         return mediaAPI.storeMediaFile(binaryFile.getFilename(), binaryFile.getData());
     }
 
+    public String storeMediaFile(String filename, InputStream data, long length) throws IOException {
+        return mediaAPI.storeMediaFile(filename, data, length);
+    }
+
     public ArrayList<Long> guiBrowse(String query) {
         // https://github.com/ankidroid/Anki-Android/pull/11899
         Uri webpage = Uri.parse("anki://x-callback-url/browser?search=" + query);
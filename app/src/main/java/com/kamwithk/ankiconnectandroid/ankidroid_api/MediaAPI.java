@@ -5,91 +5,505 @@ import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.net.Uri;
+import android.os.ParcelFileDescriptor;
 import android.util.Log;
 import androidx.core.content.FileProvider;
+import androidx.preference.PreferenceManager;
 import com.kamwithk.ankiconnectandroid.BuildConfig;
 import com.ichi2.anki.FlashCardsContract;
 import com.ichi2.anki.api.AddContentApi;
 
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.zip.GZIPInputStream;
 
 public class MediaAPI {
+    private static final int CONNECT_TIMEOUT_MS = 10 * 1000;
+    private static final int READ_TIMEOUT_MS = 30 * 1000;
+    private static final long MAX_DOWNLOAD_SIZE = 100L * 1024 * 1024;
+    private static final int DOWNLOAD_BUFFER_SIZE = 64 * 1024;
+
+    // downloads run on the server's request threads, which each reuse their own buffer
+    private static final ThreadLocal<byte[]> downloadBuffer =
+            ThreadLocal.withInitial(() -> new byte[DOWNLOAD_BUFFER_SIZE]);
+
     private Context context;
     private final AddContentApi api;
+    private final NoteAPI noteAPI;
+    private final MediaSpool spool;
+    // null if media is always stored again
+    private final MediaIndex index;
+    // whether media is handed to AnkiDroid through MediaPipeProvider, instead of a spool file
+    private final boolean usePipe;
+    // only set for pictures (see forPictures())
+    private final ImageResizer imageResizer;
 
     public MediaAPI(Context context) {
         this.context = context;
         api = new AddContentApi(context);
+        noteAPI = new NoteAPI(context);
+        spool = MediaSpool.getInstance(context);
+
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        index = preferences.getBoolean(MediaIndex.PREFERENCE_KEY, true) ? MediaIndex.getInstance(context) : null;
+        usePipe = preferences.getBoolean(MediaPipeProvider.PREFERENCE_KEY, false);
+        imageResizer = null;
+    }
+
+    private MediaAPI(MediaAPI mediaAPI, ImageResizer imageResizer) {
+        context = mediaAPI.context;
+        api = mediaAPI.api;
+        noteAPI = mediaAPI.noteAPI;
+        spool = mediaAPI.spool;
+        index = mediaAPI.index;
+        usePipe = mediaAPI.usePipe;
+        this.imageResizer = imageResizer;
+    }
+
+    /**
+     * @return a MediaAPI that shrinks the media it stores if it is a large picture (see ImageResizer),
+     * or this one if pictures aren't resized
+     */
+    public MediaAPI forPictures() {
+        ImageResizer imageResizer = ImageResizer.fromPreferences(context);
+        return imageResizer == null ? this : new MediaAPI(this, imageResizer);
     }
 
     /**
      * Stores the given file and returns its name, without the initial slash.
+     * If the same file was already stored, the existing one is used instead.
      */
-    @SuppressLint("SetWorldReadable")
     public String storeMediaFile(String filename, byte[] data) throws IOException {
-        // TODO: investigate why filename gets a number attached to it, i.e. file.png -> file_123456789.png
-        String lastPathSegment = Uri.parse(filename).getLastPathSegment();
-        lastPathSegment = lastPathSegment == null ? filename : lastPathSegment;
-        File file = new File(context.getCacheDir(), lastPathSegment);
+        if (index == null) {
+            return storeNewMediaFile(filename, data);
+        }
+
+        String contentKey = MediaIndex.contentKey(MediaIndex.createDigest().digest(data));
+        try (MediaIndex.KeyLock ignored = lockStoredMedia(contentKey)) {
+            String storedFilename = findStoredMedia(contentKey);
+            if (storedFilename == null) {
+                storedFilename = storeNewMediaFile(filename, data);
+                putStoredMedia(contentKey, storedFilename);
+            }
+            return storedFilename;
+        }
+    }
+
+    private String storeNewMediaFile(String filename, byte[] data) throws IOException {
+        // pictures are resized from a file
+        String storedFilename = usePipe && imageResizer == null ? storeMediaThroughPipe(filename, out -> out.write(data)) : null;
+        if (storedFilename == null) {
+            storedFilename = storeMediaThroughSpool(filename, data);
+        }
+        return storedFilename;
+    }
+
+    private String storeMediaThroughSpool(String filename, byte[] data) throws IOException {
+        File file = spool.createFile(filename);
 
 //        Write to a temporary file
         try (FileOutputStream fileOutputStream = new FileOutputStream(file)) {
             fileOutputStream.write(data);
         } catch (Exception e) {
             Log.w("Error", e);
+            spool.release(file);
             throw e;
         }
 
+        return storeMediaFile(filename, file);
+    }
+
+    /**
+     * Stores a file from the media spool (see MediaSpool) and returns its name, without the initial
+     * slash. The file is deleted afterwards.
+     */
+    @SuppressLint("SetWorldReadable")
+    public String storeMediaFile(String filename, File file) throws IOException {
+        if (imageResizer != null) {
+            // resizing is optional, so the picture is stored as it is if it fails
+            File resized = null;
+            try {
+                resized = spool.createFile(imageResizer.getFilename(filename));
+                if (imageResizer.resize(file, resized)) {
+                    spool.release(file);
+                    file = resized;
+                    filename = imageResizer.getFilename(filename);
+                    resized = null;
+                }
+            } catch (IOException | RuntimeException e) {
+                Log.w("AnkiConnectAndroid", "Could not resize " + filename + ", storing it as it is", e);
+            } finally {
+                if (resized != null) {
+                    spool.release(resized);
+                }
+            }
+        }
+
+        // TODO: investigate why filename gets a number attached to it, i.e. file.png -> file_123456789.png
+        String lastPathSegment = getLastPathSegment(filename);
+
         Uri file_uri = FileProvider.getUriForFile(context, BuildConfig.APPLICATION_ID, file);
-        context.grantUriPermission("com.ichi2.anki", file_uri, Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        Uri returnUri;
+        try {
+            returnUri = insertMedia(file_uri, lastPathSegment);
+        } finally {
+            spool.release(file);
+        }
 
-        ContentValues contentValues = new ContentValues();
-        contentValues.put(FlashCardsContract.AnkiMedia.FILE_URI, file_uri.toString());
-        contentValues.put(FlashCardsContract.AnkiMedia.PREFERRED_NAME, lastPathSegment.replaceAll("\\..*", ""));
+        if (returnUri == null) {
+            throw new IOException("AnkiDroid could not store " + lastPathSegment);
+        }
+        return new File(returnUri.getPath()).toString().substring(1);
+    }
 
-        ContentResolver contentResolver = context.getContentResolver();
-        Uri returnUri = contentResolver.insert(FlashCardsContract.AnkiMedia.CONTENT_URI, contentValues);
+    /**
+     * Stores media through MediaPipeProvider, without writing it to a file first.
+     * @return the name the media was stored as, or null if it has to be stored through the spool instead
+     */
+    private String storeMediaThroughPipe(String filename, MediaPipeProvider.Source source) {
+        String lastPathSegment = getLastPathSegment(filename);
+        MediaPipeProvider.Transfer transfer = MediaPipeProvider.register(lastPathSegment, source);
 
-//        Remove temporary file
-        file.deleteOnExit();
+        Uri returnUri = null;
+        try {
+            returnUri = insertMedia(transfer.getUri(), lastPathSegment);
+        } catch (RuntimeException e) {
+            Log.w("AnkiConnectAndroid", "Could not store " + lastPathSegment + " through a pipe", e);
+        }
 
+        // i.e. AnkiDroid needs a seekable file, or the download failed halfway
+        if (!transfer.finish() || returnUri == null) {
+            Log.i("AnkiConnectAndroid", "Storing " + lastPathSegment + " through a file instead of a pipe");
+            return null;
+        }
         return new File(returnUri.getPath()).toString().substring(1);
     }
 
+    /**
+     * Lets AnkiDroid copy the media at the given URI into the collection.
+     * @return the URI of the stored file, or null if it couldn't be stored
+     */
+    private Uri insertMedia(Uri fileUri, String lastPathSegment) {
+        context.grantUriPermission("com.ichi2.anki", fileUri, Intent.FLAG_GRANT_READ_URI_PERMISSION);
+
+        ContentValues contentValues = new ContentValues();
+        contentValues.put(FlashCardsContract.AnkiMedia.FILE_URI, fileUri.toString());
+        contentValues.put(FlashCardsContract.AnkiMedia.PREFERRED_NAME, lastPathSegment.replaceAll("\\..*", ""));
+
+        try {
+            ContentResolver contentResolver = context.getContentResolver();
+            return contentResolver.insert(FlashCardsContract.AnkiMedia.CONTENT_URI, contentValues);
+        } finally {
+            // AnkiDroid has copied the media into the collection once the insert returns
+            context.revokeUriPermission(fileUri, Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        }
+    }
+
+    private static String getLastPathSegment(String filename) {
+        String lastPathSegment = Uri.parse(filename).getLastPathSegment();
+        return lastPathSegment == null ? filename : lastPathSegment;
+    }
+
     /**
      * Download the requested audio file from the internet and store it on the disk.
+     * The download is written straight to the file that is handed to AnkiDroid, so it is never held
+     * in memory as a whole. If the URL or the downloaded file was already stored, the existing file
+     * is used instead.
      * @return The path to the audio file.
      */
     public String downloadAndStoreBinaryFile(String fileName, String url) throws IOException {
-        byte[] data = downloadMediaFile(url);
-        BinaryFile binaryFile = new BinaryFile();
-        binaryFile.setFilename(fileName);
-        binaryFile.setData(data);
+        if (index == null) {
+            return downloadAndStoreNewBinaryFile(fileName, url);
+        }
+
+        String urlKey = MediaIndex.urlKey(url);
+        // the same URL requested twice at once is only downloaded once
+        try (MediaIndex.KeyLock ignored = lockStoredMedia(urlKey)) {
+            String storedFilename = findStoredMedia(urlKey);
+            if (storedFilename == null) {
+                storedFilename = downloadAndStoreNewBinaryFile(fileName, url);
+                putStoredMedia(urlKey, storedFilename);
+            }
+            return storedFilename;
+        }
+    }
+
+    private String downloadAndStoreNewBinaryFile(String fileName, String url) throws IOException {
+        if (usePipe && imageResizer == null) {
+            // the download is written straight into the pipe, and hashed on the way
+            MessageDigest digest = index != null ? MediaIndex.createDigest() : null;
+            String storedFilename = storeMediaThroughPipe(fileName, out ->
+                    downloadMediaFile(url, digest != null ? new DigestOutputStream(out, digest) : out));
+            if (storedFilename != null) {
+                if (digest != null) {
+                    putStoredMedia(MediaIndex.contentKey(digest.digest()), storedFilename);
+                }
+                return storedFilename;
+            }
+        }
 
-        return storeMediaFile(binaryFile.getFilename(), binaryFile.getData());
+        // i.e. the same audio from a different source, or a URL that changes between requests, is
+        // still found by its contents
+        return storeMediaThroughSpool(fileName, out -> downloadMediaFile(url, out));
     }
 
+    /**
+     * Stores the next length bytes of the stream, i.e. a file uploaded in a request body. The stream
+     * can't be read again, so it is always written to the spool first (without trying a pipe).
+     * @return the name the file was stored as, or the existing file if it was already stored
+     */
+    public String storeMediaFile(String filename, InputStream in, long length) throws IOException {
+        if (length > MAX_DOWNLOAD_SIZE) {
+            throw new IOException("Could not store " + filename + ": the file is larger than "
+                    + MAX_DOWNLOAD_SIZE + " bytes");
+        }
+        return storeMediaThroughSpool(filename, out -> {
+            byte[] buffer = downloadBuffer.get();
+            long remaining = length;
+            while (remaining > 0) {
+                int bytesRead = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (bytesRead == -1) {
+                    throw new EOFException("Could not store " + filename + ": the file ended " + remaining + " bytes early");
+                }
+                out.write(buffer, 0, bytesRead);
+                remaining -= bytesRead;
+            }
+        });
+    }
+
+    /**
+     * Stores a file that is already on the device (see MediaPaths). AnkiDroid reads the file directly,
+     * so it isn't copied by this app at all.
+     *
+     * @param path a file path, file:// URI or content:// URI within the allow-list
+     * @return the name the file was stored as, or the existing file if it was already stored
+     */
+    public String storeLocalMediaFile(String filename, String path) throws Exception {
+        Uri uri = new MediaPaths(context).resolve(path);
+        ContentResolver contentResolver = context.getContentResolver();
+
+        if (index != null) {
+            MessageDigest digest = MediaIndex.createDigest();
+            try (InputStream in = openInputStream(contentResolver, uri)) {
+                byte[] buffer = downloadBuffer.get();
+                int bytesRead;
+                while ((bytesRead = in.read(buffer)) != -1) {
+                    digest.update(buffer, 0, bytesRead);
+                }
+            }
+            String contentKey = MediaIndex.contentKey(digest.digest());
+            try (MediaIndex.KeyLock ignored = lockStoredMedia(contentKey)) {
+                String storedFilename = findStoredMedia(contentKey);
+                if (storedFilename == null) {
+                    storedFilename = storeNewLocalMediaFile(filename, uri);
+                    putStoredMedia(contentKey, storedFilename);
+                }
+                return storedFilename;
+            }
+        }
+        return storeNewLocalMediaFile(filename, uri);
+    }
+
+    private String storeNewLocalMediaFile(String filename, Uri uri) throws IOException {
+        ContentResolver contentResolver = context.getContentResolver();
+
+        // pictures are resized from a copy
+        String storedFilename = imageResizer == null ? storeMediaThroughDescriptor(filename, uri) : null;
+        if (storedFilename == null) {
+            // i.e. the file can't be passed on to AnkiDroid, so it is copied instead
+            storedFilename = storeMediaThroughSpool(filename, out -> {
+                try (InputStream in = openInputStream(contentResolver, uri)) {
+                    byte[] buffer = downloadBuffer.get();
+                    int bytesRead;
+                    while ((bytesRead = in.read(buffer)) != -1) {
+                        out.write(buffer, 0, bytesRead);
+                    }
+                }
+            });
+        }
+        return storedFilename;
+    }
+
+    /**
+     * Lets AnkiDroid read the file at the URI directly through MediaPipeProvider.
+     * @return the name the file was stored as, or null if it has to be copied instead
+     */
+    private String storeMediaThroughDescriptor(String filename, Uri uri) {
+        String lastPathSegment = getLastPathSegment(filename);
+        MediaPipeProvider.Transfer transfer = MediaPipeProvider.registerDescriptor(lastPathSegment, () -> {
+            ParcelFileDescriptor descriptor = context.getContentResolver().openFileDescriptor(uri, "r");
+            if (descriptor == null) {
+                throw new FileNotFoundException("Could not open " + uri);
+            }
+            return descriptor;
+        });
+
+        Uri returnUri = null;
+        try {
+            returnUri = insertMedia(transfer.getUri(), lastPathSegment);
+        } catch (RuntimeException e) {
+            Log.w("AnkiConnectAndroid", "Could not store " + uri + " directly", e);
+        }
+
+        if (!transfer.finish() || returnUri == null) {
+            return null;
+        }
+        return new File(returnUri.getPath()).toString().substring(1);
+    }
+
+    private static InputStream openInputStream(ContentResolver contentResolver, Uri uri) throws IOException {
+        InputStream in = contentResolver.openInputStream(uri);
+        if (in == null) {
+            throw new FileNotFoundException("Could not open " + uri);
+        }
+        return in;
+    }
+
+    /**
+     * Writes the media into a spool file and stores it. The media is hashed on the way, so that
+     * media that was already stored is reused instead.
+     */
+    private String storeMediaThroughSpool(String filename, MediaPipeProvider.Source source) throws IOException {
+        File file = spool.createFile(filename);
+        MessageDigest digest = index != null ? MediaIndex.createDigest() : null;
+        try (OutputStream out = digest != null ? new DigestOutputStream(new FileOutputStream(file), digest)
+                : new FileOutputStream(file)) {
+            source.writeTo(out);
+        } catch (IOException e) {
+            spool.release(file);
+            throw e;
+        }
+
+        if (index == null) {
+            return storeMediaFile(filename, file);
+        }
+
+        String contentKey = MediaIndex.contentKey(digest.digest());
+        try (MediaIndex.KeyLock ignored = lockStoredMedia(contentKey)) {
+            String storedFilename = findStoredMedia(contentKey);
+            if (storedFilename != null) {
+                spool.release(file);
+            } else {
+                storedFilename = storeMediaFile(filename, file);
+                putStoredMedia(contentKey, storedFilename);
+            }
+            return storedFilename;
+        }
+    }
+
+    /**
+     * @return the name of a file in the collection with the given key (see MediaIndex), or null
+     */
+    private String findStoredMedia(String key) {
+        String storedFilename = index.get(getIndexKey(key));
+        if (storedFilename == null || index.isRecentlyChecked(storedFilename)) {
+            return storedFilename;
+        }
+        // Check Media removes files that no note uses anymore, so the file is only reused if a note
+        // still refers to it
+        if (noteAPI.findNotes("\"*" + escapeSearchText(storedFilename) + "*\"", 0, 1, -1).length == 0) {
+            index.remove(storedFilename);
+            return null;
+        }
+        index.setChecked(storedFilename);
+        return storedFilename;
+    }
+
+    private void putStoredMedia(String key, String storedFilename) {
+        index.put(getIndexKey(key), storedFilename);
+    }
+
+    private MediaIndex.KeyLock lockStoredMedia(String key) {
+        return index.lock(getIndexKey(key));
+    }
+
+    // a resized picture is only the same as another one that was resized with the same settings
+    private String getIndexKey(String key) {
+        return imageResizer == null ? key : key + "|" + imageResizer.getKey();
+    }
+
+    /**
+     * Escapes the characters that have a special meaning within a quoted Anki search.
+     */
+    private static String escapeSearchText(String text) {
+        StringBuilder escaped = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\\' || c == '"' || c == '*' || c == '_' || c == ':') {
+                escaped.append('\\');
+            }
+            escaped.append(c);
+        }
+        return escaped.toString();
+    }
+
+    /**
+     * Downloads a small file into memory. Use downloadAndStoreBinaryFile() for files that are stored.
+     */
     public byte[] downloadMediaFile(String audioUri) throws IOException {
+        try (ByteArrayOutputStream out = new ByteArrayOutputStream()) {
+            downloadMediaFile(audioUri, out);
+            return out.toByteArray();
+        }
+    }
+
+    /**
+     * Downloads a file into the given stream.
+     */
+    public void downloadMediaFile(String audioUri, OutputStream out) throws IOException {
         URL url = new URL(audioUri);
         HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        conn.setReadTimeout(READ_TIMEOUT_MS);
+        // Requesting gzip explicitly turns off the transparent decompression, so the encoding (and
+        // therefore the meaning of the Content-Length) is known
+        conn.setRequestProperty("Accept-Encoding", "gzip");
 
-        try (InputStream in = conn.getInputStream()) {
-            try (ByteArrayOutputStream out = new ByteArrayOutputStream()) {
-                byte[] buffer = new byte[1024 * 5];
+        try {
+            int responseCode = conn.getResponseCode();
+            if (responseCode >= 400) {
+                throw new IOException("Could not download " + audioUri + ": HTTP " + responseCode);
+            }
+
+            long contentLength = conn.getContentLengthLong();
+            if (contentLength > MAX_DOWNLOAD_SIZE) {
+                throw new IOException("Could not download " + audioUri + ": the file is larger than "
+                        + MAX_DOWNLOAD_SIZE + " bytes");
+            }
+
+            InputStream in = conn.getInputStream();
+            if ("gzip".equalsIgnoreCase(conn.getContentEncoding())) {
+                in = new GZIPInputStream(in, DOWNLOAD_BUFFER_SIZE);
+            }
+
+            try (InputStream body = in) {
+                byte[] buffer = downloadBuffer.get();
+                long total = 0;
                 int bytesRead;
-                while ((bytesRead = in.read(buffer)) != -1) {
+                while ((bytesRead = body.read(buffer)) != -1) {
+                    total += bytesRead;
+                    // the Content-Length can be missing, or not match the decompressed size
+                    if (total > MAX_DOWNLOAD_SIZE) {
+                        throw new IOException("Could not download " + audioUri + ": the file is larger than "
+                                + MAX_DOWNLOAD_SIZE + " bytes");
+                    }
                     out.write(buffer, 0, bytesRead);
                 }
-                byte[] data = out.toByteArray();
-                return data;
             }
+        } finally {
+            conn.disconnect();
         }
     }
 
@@ -0,0 +1,168 @@
+package com.kamwithk.ankiconnectandroid.ankidroid_api;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import android.os.SystemClock;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Remembers which media has already been added to the collection, so that adding the same audio or
+ * image again reuses the existing file instead of making AnkiDroid store a renamed copy of it.
+ *
+ * Media is looked up by the SHA-256 of its contents, and downloaded media also by its URL (which
+ * skips the download as well). Files can be removed from the collection later on (i.e. by Check
+ * Media), so a stored filename should be checked before it is reused (see MediaAPI). A file that was
+ * checked (or stored) recently is trusted for CHECK_INTERVAL_MS, as the check searches the whole
+ * collection.
+ */
+public class MediaIndex extends SQLiteOpenHelper {
+    public static final String PREFERENCE_KEY = "media_deduplication";
+
+    private static final String DATABASE_NAME = "media_index.db";
+    private static final int DATABASE_VERSION = 1;
+
+    private static final String CONTENT_KEY_PREFIX = "sha256:";
+    private static final String URL_KEY_PREFIX = "url:";
+
+    private static final long CHECK_INTERVAL_MS = 10 * 60 * 1000;
+
+    private static volatile MediaIndex instance;
+
+    private final Map<String, Long> checkedFilenames = new ConcurrentHashMap<>();
+    private final Map<String, KeyLock> keyLocks = new HashMap<>();
+
+    private MediaIndex(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    public static MediaIndex getInstance(Context context) {
+        if (instance == null) {
+            synchronized (MediaIndex.class) {
+                if (instance == null) {
+                    instance = new MediaIndex(context.getApplicationContext());
+                }
+            }
+        }
+        return instance;
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE media (key TEXT PRIMARY KEY NOT NULL, filename TEXT NOT NULL)");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        db.execSQL("DROP TABLE IF EXISTS media");
+        onCreate(db);
+    }
+
+    public static String contentKey(byte[] sha256) {
+        StringBuilder key = new StringBuilder(CONTENT_KEY_PREFIX);
+        for (byte b : sha256) {
+            key.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return key.toString();
+    }
+
+    public static String urlKey(String url) {
+        return URL_KEY_PREFIX + url;
+    }
+
+    public static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every Android version has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the name the media was stored as, or null if it hasn't been stored yet
+     */
+    public String get(String key) {
+        try (Cursor cursor = getReadableDatabase().rawQuery("SELECT filename FROM media WHERE key = ?",
+                new String[]{key})) {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        }
+    }
+
+    public void put(String key, String filename) {
+        ContentValues values = new ContentValues();
+        values.put("key", key);
+        values.put("filename", filename);
+        getWritableDatabase().insertWithOnConflict("media", null, values, SQLiteDatabase.CONFLICT_REPLACE);
+        setChecked(filename);
+    }
+
+    /**
+     * Forgets a file, i.e. after it turned out to be missing from the collection.
+     */
+    public void remove(String filename) {
+        checkedFilenames.remove(filename);
+        getWritableDatabase().delete("media", "filename = ?", new String[]{filename});
+    }
+
+    /**
+     * @return whether the file was found in the collection within the last CHECK_INTERVAL_MS
+     */
+    public boolean isRecentlyChecked(String filename) {
+        Long checkedAt = checkedFilenames.get(filename);
+        return checkedAt != null && SystemClock.elapsedRealtime() - checkedAt < CHECK_INTERVAL_MS;
+    }
+
+    public void setChecked(String filename) {
+        checkedFilenames.put(filename, SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Locks the key until the returned lock is closed, so that the same media being added by two
+     * requests at once is looked up and stored by one of them at a time (and so only stored once).
+     * The lock is reentrant. To avoid deadlocks, a URL key must be locked before a content key.
+     */
+    public KeyLock lock(String key) {
+        KeyLock keyLock;
+        synchronized (keyLocks) {
+            keyLock = keyLocks.get(key);
+            if (keyLock == null) {
+                keyLock = new KeyLock(key);
+                keyLocks.put(key, keyLock);
+            }
+            keyLock.users++;
+        }
+        keyLock.lock.lock();
+        return keyLock;
+    }
+
+    public class KeyLock implements AutoCloseable {
+        private final String key;
+        private final ReentrantLock lock = new ReentrantLock();
+        // the number of threads that hold or wait for the lock, guarded by keyLocks
+        private int users;
+
+        private KeyLock(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public void close() {
+            lock.unlock();
+            synchronized (keyLocks) {
+                if (--users == 0) {
+                    keyLocks.remove(key);
+                }
+            }
+        }
+    }
+}
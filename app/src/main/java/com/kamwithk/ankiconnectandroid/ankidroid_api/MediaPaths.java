@@ -0,0 +1,164 @@
+package com.kamwithk.ankiconnectandroid.ankidroid_api;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+
+import androidx.preference.PreferenceManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Decides which local files can be added as media through the "path" field.
+ *
+ * Only files within the directories of the allow-list (set in the settings, one per line) can be
+ * used, so that a site can't add arbitrary files of the app to the collection. A content:// URI is
+ * allowed if it has the same authority as an entry of the allow-list and is below its path. Entries
+ * are always treated as directories, i.e. content://com.example.provider/media allows
+ * content://com.example.provider/media/a.png but not content://com.example.provider/media2/a.png.
+ */
+public class MediaPaths {
+    public static final String PREFERENCE_KEY = "media_path_allow_list";
+
+    private final List<String> directories = new ArrayList<>();
+    private final List<ContentPrefix> uriPrefixes = new ArrayList<>();
+
+    public MediaPaths(Context context) {
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        for (String entry : preferences.getString(PREFERENCE_KEY, "").split("\n")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) {
+                continue;
+            }
+            if (entry.startsWith(ContentResolver.SCHEME_CONTENT + "://")) {
+                ContentPrefix prefix = ContentPrefix.parse(entry);
+                if (prefix != null) {
+                    uriPrefixes.add(prefix);
+                }
+            } else {
+                try {
+                    directories.add(new File(entry).getCanonicalPath());
+                } catch (IOException e) {
+                    // a directory that can't be resolved doesn't allow anything
+                }
+            }
+        }
+    }
+
+    /**
+     * @param path a file path, file:// URI or content:// URI
+     * @return the URI to read the media from
+     * @throws Exception if the path isn't within the allow-list
+     */
+    public Uri resolve(String path) throws Exception {
+        Uri uri = Uri.parse(path);
+        if (ContentResolver.SCHEME_CONTENT.equals(uri.getScheme())) {
+            if (isAllowedUri(uriPrefixes, uri.getAuthority(), uri.getEncodedPath(), uri.getPathSegments())) {
+                return uri;
+            }
+            throw new Exception("The media URI " + path + " is not allowed. Add it to \"Allowed media paths\" in the settings to use it.");
+        }
+
+        File file = new File(ContentResolver.SCHEME_FILE.equals(uri.getScheme()) ? uri.getPath() : path);
+        // resolves "..", and symbolic links that point outside of the directory
+        String canonicalPath = file.getCanonicalPath();
+        if (isInDirectory(directories, canonicalPath)) {
+            if (!file.isFile()) {
+                throw new Exception("The media file " + path + " does not exist");
+            }
+            return Uri.fromFile(new File(canonicalPath));
+        }
+        throw new Exception("The media path " + path + " is not allowed. Add its directory to \"Allowed media paths\" in the settings to use it.");
+    }
+
+    /**
+     * @param directories the canonical paths of the allowed directories
+     * @param canonicalPath the canonical path of the file
+     */
+    static boolean isInDirectory(List<String> directories, String canonicalPath) {
+        for (String directory : directories) {
+            if (canonicalPath.startsWith(directory + File.separator)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param authority the authority of the URI
+     * @param encodedPath the path of the URI as it was given, used to reject encoded slashes
+     * @param pathSegments the decoded path segments of the URI
+     */
+    static boolean isAllowedUri(List<ContentPrefix> prefixes, String authority, String encodedPath, List<String> pathSegments) {
+        if (authority == null || encodedPath == null) {
+            return false;
+        }
+        // a provider may decode the path before resolving it, so "%2F.." could still go up a directory
+        String lowerCasePath = encodedPath.toLowerCase(Locale.ROOT);
+        if (lowerCasePath.contains("%2f") || lowerCasePath.contains("%5c") || encodedPath.contains("\\")) {
+            return false;
+        }
+        for (String segment : pathSegments) {
+            if (segment.equals(".") || segment.equals("..") || segment.contains("/")) {
+                return false;
+            }
+        }
+        for (ContentPrefix prefix : prefixes) {
+            if (prefix.contains(authority, pathSegments)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A content:// entry of the allow-list: an authority and the path segments below it.
+     */
+    static class ContentPrefix {
+        private final String authority;
+        private final List<String> pathSegments;
+
+        ContentPrefix(String authority, List<String> pathSegments) {
+            this.authority = authority;
+            this.pathSegments = pathSegments;
+        }
+
+        /**
+         * @return the prefix, or null if the entry has no authority or goes up a directory
+         */
+        static ContentPrefix parse(String entry) {
+            String rest = entry.substring((ContentResolver.SCHEME_CONTENT + "://").length());
+            List<String> parts = new ArrayList<>(Arrays.asList(rest.split("/")));
+            String authority = parts.remove(0);
+            if (authority.isEmpty()) {
+                return null;
+            }
+            List<String> pathSegments = new ArrayList<>();
+            for (String part : parts) {
+                if (part.equals(".") || part.equals("..")) {
+                    return null;
+                }
+                if (!part.isEmpty()) {
+                    pathSegments.add(part);
+                }
+            }
+            return new ContentPrefix(authority, pathSegments);
+        }
+
+        /**
+         * Whether the URI is below this entry (not the entry itself, which is a directory).
+         */
+        boolean contains(String authority, List<String> pathSegments) {
+            if (!this.authority.equals(authority) || pathSegments.size() <= this.pathSegments.size()) {
+                return false;
+            }
+            return pathSegments.subList(0, this.pathSegments.size()).equals(this.pathSegments);
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package com.kamwithk.ankiconnectandroid.ankidroid_api;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.OpenableColumns;
+import android.util.Log;
+import android.webkit.MimeTypeMap;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.kamwithk.ankiconnectandroid.BuildConfig;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands media to AnkiDroid through a pipe, instead of writing it to a file in the media spool first.
+ *
+ * Each media file is registered with a one-time URI. When AnkiDroid opens it, the media is written
+ * into the pipe on a separate thread, straight from the request or the download. A pipe can't be
+ * seeked or read twice, so if AnkiDroid can't store the media this way, it should be stored through
+ * the spool instead (see MediaAPI).
+ *
+ * Media that is already in a file (see MediaPaths) is passed on as the file's own descriptor instead
+ * of a pipe, so AnkiDroid reads it directly.
+ */
+public class MediaPipeProvider extends ContentProvider {
+    public static final String PREFERENCE_KEY = "media_pipe";
+    public static final String AUTHORITY = BuildConfig.APPLICATION_ID + ".mediapipe";
+
+    // how long to wait for the media to be written after AnkiDroid has returned
+    private static final long FINISH_TIMEOUT_MS = 30 * 1000;
+
+    private static final Map<String, Transfer> transfers = new ConcurrentHashMap<>();
+    private static final ExecutorService writeExecutor = Executors.newCachedThreadPool();
+
+    public interface Source {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    public interface Descriptor {
+        ParcelFileDescriptor open() throws IOException;
+    }
+
+    /**
+     * A media file that can be read once through its URI.
+     */
+    public static class Transfer {
+        private final String token;
+        private final String name;
+        // exactly one of these is set
+        private final Source source;
+        private final Descriptor descriptor;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile boolean opened;
+        private volatile IOException error;
+
+        private Transfer(String token, String name, Source source, Descriptor descriptor) {
+            this.token = token;
+            this.name = name;
+            this.source = source;
+            this.descriptor = descriptor;
+        }
+
+        public Uri getUri() {
+            return new Uri.Builder().scheme("content").authority(AUTHORITY)
+                    .appendPath(token).appendPath(name).build();
+        }
+
+        /**
+         * Unregisters the URI, and waits until the media has been written.
+         * @return whether AnkiDroid read the whole file
+         */
+        public boolean finish() {
+            transfers.remove(token);
+            if (!opened) {
+                return false;
+            }
+            try {
+                if (!done.await(FINISH_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    return false;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            if (error != null) {
+                Log.w("AnkiConnectAndroid", "Could not write " + name + " into the media pipe", error);
+                return false;
+            }
+            return true;
+        }
+
+        private void write(ParcelFileDescriptor writeSide) {
+            try (OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(writeSide)) {
+                source.writeTo(out);
+            } catch (IOException e) {
+                error = e;
+                try {
+                    // makes the read fail, instead of AnkiDroid storing a truncated file
+                    writeSide.closeWithError(e.getMessage());
+                } catch (IOException ignored) {
+                    // already closed
+                }
+            } finally {
+                done.countDown();
+            }
+        }
+    }
+
+    public static Transfer register(String name, Source source) {
+        return register(new Transfer(UUID.randomUUID().toString(), name, source, null));
+    }
+
+    /**
+     * Registers media that is read from the given descriptor, instead of through a pipe.
+     */
+    public static Transfer registerDescriptor(String name, Descriptor descriptor) {
+        return register(new Transfer(UUID.randomUUID().toString(), name, null, descriptor));
+    }
+
+    private static Transfer register(Transfer transfer) {
+        transfers.put(transfer.token, transfer);
+        return transfer;
+    }
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    @Nullable
+    @Override
+    public ParcelFileDescriptor openFile(@NonNull Uri uri, @NonNull String mode) throws FileNotFoundException {
+        if (!"r".equals(mode)) {
+            throw new FileNotFoundException("Media can only be read: " + uri);
+        }
+        Transfer transfer = getTransfer(uri);
+        // the media can only be read once
+        if (transfer == null || !transfers.remove(transfer.token, transfer)) {
+            throw new FileNotFoundException("No media is waiting to be read at " + uri);
+        }
+
+        if (transfer.descriptor != null) {
+            try {
+                ParcelFileDescriptor descriptor = transfer.descriptor.open();
+                transfer.opened = true;
+                transfer.done.countDown();
+                return descriptor;
+            } catch (IOException e) {
+                throw new FileNotFoundException("Could not open " + transfer.name + ": " + e.getMessage());
+            }
+        }
+
+        ParcelFileDescriptor[] pipe;
+        try {
+            // a reliable pipe tells the reader if the writer failed
+            pipe = ParcelFileDescriptor.createReliablePipe();
+        } catch (IOException e) {
+            throw new FileNotFoundException("Could not create a pipe: " + e.getMessage());
+        }
+        transfer.opened = true;
+        writeExecutor.execute(() -> transfer.write(pipe[1]));
+        return pipe[0];
+    }
+
+    @Nullable
+    @Override
+    public String getType(@NonNull Uri uri) {
+        // AnkiDroid chooses the extension of the stored file from the type. The extension is taken
+        // the same way as in MediaSpool.createFile(), as MimeTypeMap.getFileExtensionFromUrl() gives
+        // up on names with characters outside of a URL (i.e. Japanese text).
+        String name = uri.getLastPathSegment();
+        int extensionStart = name == null ? -1 : name.lastIndexOf('.');
+        if (extensionStart < 0) {
+            return null;
+        }
+        String extension = name.substring(extensionStart + 1).toLowerCase(Locale.ROOT);
+        return MimeTypeMap.getSingleton().getMimeTypeFromExtension(extension);
+    }
+
+    @Nullable
+    @Override
+    public Cursor query(@NonNull Uri uri, @Nullable String[] projection, @Nullable String selection,
+                        @Nullable String[] selectionArgs, @Nullable String sortOrder) {
+        Transfer transfer = getTransfer(uri);
+        if (transfer == null) {
+            return null;
+        }
+        // the size isn't known until the media has been written
+        MatrixCursor cursor = new MatrixCursor(new String[]{OpenableColumns.DISPLAY_NAME, OpenableColumns.SIZE});
+        cursor.addRow(new Object[]{transfer.name, null});
+        return cursor;
+    }
+
+    private static Transfer getTransfer(Uri uri) {
+        if (uri.getPathSegments().isEmpty()) {
+            return null;
+        }
+        return transfers.get(uri.getPathSegments().get(0));
+    }
+
+    @Nullable
+    @Override
+    public Uri insert(@NonNull Uri uri, @Nullable ContentValues values) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int delete(@NonNull Uri uri, @Nullable String selection, @Nullable String[] selectionArgs) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int update(@NonNull Uri uri, @Nullable ContentValues values, @Nullable String selection,
+                      @Nullable String[] selectionArgs) {
+        throw new UnsupportedOperationException();
+    }
+}
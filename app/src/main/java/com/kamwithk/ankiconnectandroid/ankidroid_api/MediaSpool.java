@@ -0,0 +1,124 @@
+package com.kamwithk.ankiconnectandroid.ankidroid_api;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * The directory that media files are written to before they are handed to AnkiDroid.
+ *
+ * Every file gets a unique name, so media with the same name can be stored at the same time. Files
+ * are deleted as soon as AnkiDroid has copied them into the collection. Anything left over (i.e. when
+ * the app was killed while storing media) is removed by sweep() when the service starts, or once the
+ * spool grows past its size limit.
+ */
+public class MediaSpool {
+    private static final String DIRECTORY_NAME = "media_spool";
+    private static final long MAX_SIZE = 256L * 1024 * 1024;
+    // files that are older than this are not being stored anymore
+    private static final long STALE_AGE_MS = 60 * 60 * 1000;
+
+    private static volatile MediaSpool instance;
+
+    private final File directory;
+
+    private MediaSpool(File directory) {
+        this.directory = directory;
+    }
+
+    public static MediaSpool getInstance(Context context) {
+        if (instance == null) {
+            synchronized (MediaSpool.class) {
+                if (instance == null) {
+                    instance = new MediaSpool(new File(context.getApplicationContext().getCacheDir(), DIRECTORY_NAME));
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Creates a new empty file for the media. The name keeps the extension of the filename, which
+     * AnkiDroid uses for the stored file.
+     */
+    public File createFile(String filename) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+
+        long usage = getUsage();
+        if (usage >= MAX_SIZE) {
+            sweep(STALE_AGE_MS);
+            usage = getUsage();
+            if (usage >= MAX_SIZE) {
+                throw new IOException("Too much media is being stored at the same time (" + usage / 1024 + " KB)");
+            }
+        }
+
+        String name = Uri.parse(filename).getLastPathSegment();
+        if (name == null) {
+            name = filename;
+        }
+        int extensionStart = name.lastIndexOf('.');
+        String extension = extensionStart >= 0 ? name.substring(extensionStart) : null;
+        return File.createTempFile("media", extension, directory);
+    }
+
+    /**
+     * Deletes a file once it isn't needed anymore.
+     */
+    public void release(File file) {
+        if (!file.delete() && file.exists()) {
+            Log.w("AnkiConnectAndroid", "Could not delete " + file);
+        }
+    }
+
+    /**
+     * @return the number of bytes used by the files in the spool
+     */
+    public long getUsage() {
+        long usage = 0;
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                usage += file.length();
+            }
+        }
+        return usage;
+    }
+
+    /**
+     * Removes every file that was left over from earlier runs. Should only be called before any media
+     * is stored, i.e. when the service starts.
+     */
+    public void sweep() {
+        sweep(0);
+    }
+
+    private void sweep(long minAge) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        int count = 0;
+        long size = 0;
+        for (File file : files) {
+            if (now - file.lastModified() >= minAge) {
+                long length = file.length();
+                if (file.delete()) {
+                    count++;
+                    size += length;
+                }
+            }
+        }
+        if (count > 0) {
+            Log.i("AnkiConnectAndroid", "Removed " + count + " leftover media file(s) (" + size / 1024 +
+                    " KB), the media spool now uses " + getUsage() / 1024 + " KB");
+        }
+    }
+}
@@ -1,20 +1,19 @@
 package com.kamwithk.ankiconnectandroid.ankidroid_api;
 
 import android.content.Context;
-import com.ichi2.anki.api.AddContentApi;
 
 import java.util.HashMap;
 import java.util.Map;
 
 public class ModelAPI {
-    private final AddContentApi api;
+    private final ModelCache modelCache;
 
     public ModelAPI(Context context) {
-        api = new AddContentApi(context);
+        modelCache = ModelCache.getInstance(context);
     }
 
     public String[] modelNames() throws Exception {
-        Map<Long, String> models = api.getModelList(0);
+        Map<Long, String> models = modelCache.getModelList(0);
 
         if (models != null) {
             return models.values().toArray(new String[0]);
@@ -24,7 +23,7 @@ public class ModelAPI {
     }
 
     public Map<String, Long> modelNamesAndIds(Integer numFields) throws Exception {
-        Map<Long, String> temporary = api.getModelList(numFields);
+        Map<Long, String> temporary = modelCache.getModelList(numFields);
         Map<String, Long> models = new HashMap<>();
 
         if (temporary != null) {
@@ -40,7 +39,7 @@ public class ModelAPI {
     }
 
     public String[] modelFieldNames(Long model_id) {
-        return api.getFieldList(model_id);
+        return modelCache.getFieldNames(model_id);
     }
 
     public Long getModelID(String modelName, Integer numFields) throws Exception {
@@ -0,0 +1,158 @@
+package com.kamwithk.ankiconnectandroid.ankidroid_api;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.ichi2.anki.FlashCardsContract;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the names and fields of all models, so that they don't have to be requested from AnkiDroid
+ * for every request (i.e. notesInfo, which Yomitan calls repeatedly for the same few models).
+ *
+ * All models are loaded with a single query. They are loaded again when AnkiDroid reports a change
+ * to the models, when a model that isn't known is requested (i.e. it was just added), and after
+ * MAX_AGE_MS, as changes made within AnkiDroid itself aren't always reported.
+ *
+ * As the cache can be out of date for that long, it is only used for reading. Notes are written with
+ * the field names asked from AnkiDroid at the time (see NoteAPI.getFieldList()).
+ */
+public class ModelCache {
+    private static final long MAX_AGE_MS = 60 * 1000;
+    private static final String[] MODEL_PROJECTION = {
+            FlashCardsContract.Model._ID, FlashCardsContract.Model.NAME, FlashCardsContract.Model.FIELD_NAMES
+    };
+
+    private static volatile ModelCache instance;
+
+    private final Context context;
+    private final Object lock = new Object();
+    // in the order AnkiDroid returned them
+    private volatile Map<Long, NoteAPI.Model> models;
+    private volatile long loadedAt;
+
+    private ModelCache(Context context) {
+        this.context = context;
+        context.getContentResolver().registerContentObserver(FlashCardsContract.Model.CONTENT_URI, true,
+                new ContentObserver(null) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        invalidate();
+                    }
+                });
+    }
+
+    public static ModelCache getInstance(Context context) {
+        if (instance == null) {
+            synchronized (ModelCache.class) {
+                if (instance == null) {
+                    instance = new ModelCache(context.getApplicationContext());
+                }
+            }
+        }
+        return instance;
+    }
+
+    public void invalidate() {
+        models = null;
+    }
+
+    /**
+     * @return the model, or null if it doesn't exist
+     */
+    public NoteAPI.Model getModel(long modelId) {
+        Map<Long, NoteAPI.Model> models = getModels(false);
+        NoteAPI.Model model = models == null ? null : models.get(modelId);
+        if (model == null) {
+            // the model might have been added since the models were loaded
+            models = getModels(true);
+            model = models == null ? null : models.get(modelId);
+        }
+        return model;
+    }
+
+    /**
+     * Same as AddContentApi.getFieldList()
+     */
+    public String[] getFieldNames(long modelId) {
+        NoteAPI.Model model = getModel(modelId);
+        return model == null ? null : model.getFieldNames();
+    }
+
+    /**
+     * Same as AddContentApi.getModelName()
+     */
+    public String getModelName(long modelId) {
+        NoteAPI.Model model = getModel(modelId);
+        return model == null ? null : model.getModelName();
+    }
+
+    /**
+     * Same as AddContentApi.getModelList()
+     * @return the names of the models with at least minNumFields fields by their ID, or null if the
+     * models couldn't be read
+     */
+    public Map<Long, String> getModelList(int minNumFields) {
+        Map<Long, NoteAPI.Model> models = getModels(false);
+        if (models == null) {
+            return null;
+        }
+        Map<Long, String> modelList = new LinkedHashMap<>();
+        for (NoteAPI.Model model : models.values()) {
+            if (model.getFieldNames().length >= minNumFields) {
+                modelList.put(model.getModelId(), model.getModelName());
+            }
+        }
+        return modelList;
+    }
+
+    private Map<Long, NoteAPI.Model> getModels(boolean reload) {
+        Map<Long, NoteAPI.Model> models = this.models;
+        if (!reload && models != null && SystemClock.elapsedRealtime() - loadedAt < MAX_AGE_MS) {
+            return models;
+        }
+        synchronized (lock) {
+            // another thread might have loaded them in the meantime
+            if (this.models != models && this.models != null) {
+                return this.models;
+            }
+            models = load();
+            if (models != null) {
+                loadedAt = SystemClock.elapsedRealtime();
+                this.models = models;
+            }
+            return models;
+        }
+    }
+
+    private Map<Long, NoteAPI.Model> load() {
+        Cursor cursor = context.getContentResolver().query(FlashCardsContract.Model.CONTENT_URI,
+                MODEL_PROJECTION, null, null, null);
+        if (cursor == null) {
+            return null;
+        }
+
+        Map<Long, NoteAPI.Model> models = new LinkedHashMap<>();
+        try (cursor) {
+            int idIdx = cursor.getColumnIndexOrThrow(FlashCardsContract.Model._ID);
+            int nameIdx = cursor.getColumnIndexOrThrow(FlashCardsContract.Model.NAME);
+            int fieldNamesIdx = cursor.getColumnIndexOrThrow(FlashCardsContract.Model.FIELD_NAMES);
+            while (cursor.moveToNext()) {
+                long id = cursor.getLong(idIdx);
+                String[] fieldNames = Utility.splitFields(cursor.getString(fieldNamesIdx));
+                models.put(id, new NoteAPI.Model(id, cursor.getString(nameIdx),
+                        fieldNames != null ? fieldNames : new String[0]));
+            }
+        } catch (RuntimeException e) {
+            Log.w("AnkiConnectAndroid", "Could not read the models", e);
+            return null;
+        }
+        return Collections.unmodifiableMap(models);
+    }
+}
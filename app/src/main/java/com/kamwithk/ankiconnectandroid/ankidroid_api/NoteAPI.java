@@ -1,29 +1,48 @@
 package com.kamwithk.ankiconnectandroid.ankidroid_api;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
+import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.RemoteException;
 import android.text.TextUtils;
+import android.util.Log;
 
 import com.ichi2.anki.FlashCardsContract;
 import com.ichi2.anki.api.AddContentApi;
 
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class NoteAPI {
     private Context context;
     private final ContentResolver resolver;
     private final AddContentApi api;
+    private final ModelCache modelCache;
 
     private static final String[] MODEL_PROJECTION = {FlashCardsContract.Note.MID};
     private static final String[] NOTE_ID_PROJECTION = {FlashCardsContract.Note._ID};
+    private static final String[] NOTE_FIELDS_PROJECTION = {FlashCardsContract.Note._ID, FlashCardsContract.Note.MID, FlashCardsContract.Note.FLDS};
     private static final String[] NOTES_INFO_PROJECTION = {FlashCardsContract.Note._ID, FlashCardsContract.Note.MID, FlashCardsContract.Note.TAGS, FlashCardsContract.Note.FLDS};
 
+    // Longer lists of notes are queried in chunks, so that neither the "nid:" query nor the cursor
+    // window of its result grow with the number of notes
+    private static final int NOTES_INFO_CHUNK_SIZE = 500;
+    private static final int NOTES_INFO_THREADS = 3;
+    private static final ExecutorService NOTES_INFO_EXECUTOR = Executors.newFixedThreadPool(NOTES_INFO_THREADS);
+
     public NoteAPI(Context context) {
         this.context = context;
         this.resolver = context.getContentResolver();
         api = new AddContentApi(context);
+        modelCache = ModelCache.getInstance(context);
     }
 
     static String escapeQueryStr(String s) {
@@ -38,7 +57,8 @@ public class NoteAPI {
      * @param data Map of (field name, field value) pairs
      */
     public Long addNote(final Map<String, String> data, Long deck_id, Long model_id, Set<String> tags) throws Exception {
-        String[] allFieldNames = api.getFieldList(model_id);
+        // not taken from ModelCache, which might not know about fields that were just changed
+        String[] allFieldNames = getFieldList(model_id);
         if (allFieldNames == null) {
             throw new Exception("Couldn't get fields");
         }
@@ -53,13 +73,21 @@ public class NoteAPI {
         return api.addNote(model_id, deck_id, fields, tags);
     }
 
+    /**
+     * The current field names of the model, asked from AnkiDroid. Notes are written with these instead
+     * of the ones from ModelCache, so that a change to the model can't put values into the wrong fields.
+     */
+    public String[] getFieldList(long model_id) {
+        return api.getFieldList(model_id);
+    }
+
     public String[] getNoteFields(long note_id) throws Exception {
         return api.getNote(note_id).getFields();
     }
 
     public boolean updateNoteFields(long note_id, final Map<String, String> data) throws Exception {
         long modelId = getNoteModelId(note_id);
-        String[] allFieldNames = api.getFieldList(modelId);
+        String[] allFieldNames = getFieldList(modelId);
         if (allFieldNames == null) {
             throw new Exception("Couldn't get fields");
         }
@@ -73,6 +101,103 @@ public class NoteAPI {
         return api.updateNoteFields(note_id, fields);
     }
 
+    /**
+     * Reads the model and fields of all notes with a single query (per NOTES_INFO_CHUNK_SIZE notes),
+     * instead of getNoteModelId() and getNoteFields() for each note
+     *
+     * @return the notes by their ID. Notes that don't exist are left out.
+     */
+    public Map<Long, NoteFields> getNotesFields(List<Long> noteIds) throws Exception {
+        Map<Long, NoteFields> notes = new HashMap<>();
+        for (int start = 0; start < noteIds.size(); start += NOTES_INFO_CHUNK_SIZE) {
+            List<Long> chunk = noteIds.subList(start, Math.min(start + NOTES_INFO_CHUNK_SIZE, noteIds.size()));
+            Cursor cursor = this.resolver.query(
+                    FlashCardsContract.Note.CONTENT_URI,
+                    NOTE_FIELDS_PROJECTION,
+                    getNidQuery(chunk),
+                    null,
+                    null
+            );
+            if (cursor == null) {
+                throw new Exception("Couldn't get notes");
+            }
+
+            try (cursor) {
+                int idIdx = cursor.getColumnIndexOrThrow(FlashCardsContract.Note._ID);
+                int midIdx = cursor.getColumnIndexOrThrow(FlashCardsContract.Note.MID);
+                int fldsIdx = cursor.getColumnIndexOrThrow(FlashCardsContract.Note.FLDS);
+                while (cursor.moveToNext()) {
+                    long id = cursor.getLong(idIdx);
+                    notes.put(id, new NoteFields(id, cursor.getLong(midIdx), Utility.splitFields(cursor.getString(fldsIdx))));
+                }
+            }
+        }
+        return notes;
+    }
+
+    /**
+     * Same as updateNoteFields() for each note, but all notes are updated with a single batch
+     *
+     * @param fields the complete fields of each note, in the order of its model. A note can be
+     *               updated more than once, which happens in order.
+     * @return the error of each note, or null if it was updated
+     */
+    public Exception[] updateNotesFields(List<Long> noteIds, List<String[]> fields) {
+        Exception[] errors = new Exception[noteIds.size()];
+        if (noteIds.isEmpty()) {
+            return errors;
+        }
+
+        // The same update that AddContentApi.updateNoteFields() makes
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>(noteIds.size());
+        for (int i = 0; i < noteIds.size(); i++) {
+            operations.add(ContentProviderOperation.newUpdate(getNoteUri(noteIds.get(i)))
+                    .withValue(FlashCardsContract.Note.FLDS, Utility.joinFields(fields.get(i)))
+                    .build());
+        }
+
+        ContentProviderResult[] results;
+        try {
+            results = this.resolver.applyBatch(FlashCardsContract.AUTHORITY, operations);
+        } catch (OperationApplicationException | RemoteException | RuntimeException e) {
+            // A single note (i.e. with the wrong number of fields) fails the whole batch, and there is
+            // no telling which notes before it were updated. Updating a note with the same fields
+            // again doesn't change anything, so all notes are updated one by one instead.
+            Log.w("AnkiConnectAndroid", "Could not update the notes in a batch, updating them one by one", e);
+            for (int i = 0; i < noteIds.size(); i++) {
+                errors[i] = updateNote(noteIds.get(i), fields.get(i));
+            }
+            return errors;
+        }
+
+        for (int i = 0; i < results.length; i++) {
+            if (results[i].count == null || results[i].count == 0) {
+                errors[i] = new Exception("Couldn't update note " + noteIds.get(i));
+            }
+        }
+        return errors;
+    }
+
+    /**
+     * @return the error, or null if the note was updated
+     */
+    private Exception updateNote(long noteId, String[] fields) {
+        ContentValues values = new ContentValues();
+        values.put(FlashCardsContract.Note.FLDS, Utility.joinFields(fields));
+        try {
+            if (this.resolver.update(getNoteUri(noteId), values, null, null) == 0) {
+                return new Exception("Couldn't update note " + noteId);
+            }
+            return null;
+        } catch (RuntimeException e) {
+            return e;
+        }
+    }
+
+    private static Uri getNoteUri(long noteId) {
+        return Uri.withAppendedPath(FlashCardsContract.Note.CONTENT_URI, Long.toString(noteId));
+    }
+
     public Long getNoteModelId(long note_id) {
         // Manually queries the note with a specific projection to get the model ID
         // Code copied/pasted from getNote() in AddContentAPI:
@@ -95,9 +220,22 @@ public class NoteAPI {
         }
     }
 
-    public ArrayList<Long> findNotes(String query) {
-        ArrayList<Long> noteIds = new ArrayList<>();
+    public long[] findNotes(String query) {
+        return findNotes(query, 0, -1, -1);
+    }
 
+    /**
+     * Without afterId, the notes are in the order that AnkiDroid returns them in, which depends on the
+     * query (i.e. searches by deck follow the cards), so offset only pages through a search
+     * consistently as long as no notes are added or deleted. With afterId, the notes are sorted by
+     * their ID instead.
+     *
+     * @param offset the number of matching notes to skip (after afterId)
+     * @param limit the maximum number of notes to return, or -1 to return all of them
+     * @param afterId only return notes with a larger ID, or -1 to return all notes. Passing the last ID of
+     *                the previous page gets the next page, even if notes were added or deleted since.
+     */
+    public long[] findNotes(String query, int offset, int limit, long afterId) {
         final Cursor cursor = this.resolver.query(
                 FlashCardsContract.Note.CONTENT_URI,
                 NOTE_ID_PROJECTION,
@@ -106,19 +244,47 @@ public class NoteAPI {
                 null
         );
 
-        if (cursor != null) {
-            if (!cursor.moveToFirst()) {
-                return noteIds;
+        if (cursor == null) {
+            return new long[0];
+        }
+
+        try (cursor) {
+            if (afterId >= 0) {
+                // all IDs are needed to sort them, but only the page is copied out
+                long[] noteIds = readNoteIds(cursor, cursor.getCount());
+                Arrays.sort(noteIds);
+                int start = Arrays.binarySearch(noteIds, afterId);
+                start = start >= 0 ? start + 1 : -start - 1;
+                start = (int) Math.min(noteIds.length, (long) start + offset);
+                int end = limit < 0 ? noteIds.length : (int) Math.min(noteIds.length, (long) start + limit);
+                return Arrays.copyOfRange(noteIds, start, end);
+            }
+
+            int capacity = cursor.getCount();
+            if (offset > 0) {
+                // the skipped notes don't have to be read at all
+                if (!cursor.moveToPosition(offset - 1)) {
+                    return new long[0];
+                }
+                capacity -= offset;
             }
-            for (int i = 0; i < cursor.getCount(); i++) {
-                long id = cursor.getLong(0);
-                noteIds.add(id);
-                cursor.moveToNext();
+            if (limit >= 0) {
+                capacity = Math.min(capacity, limit);
             }
-            cursor.close();
+            return readNoteIds(cursor, capacity);
         }
+    }
 
-        return noteIds;
+    /**
+     * Reads up to maxCount IDs from the current position of the cursor
+     */
+    private static long[] readNoteIds(Cursor cursor, int maxCount) {
+        long[] noteIds = new long[maxCount];
+        int size = 0;
+        while (size < noteIds.length && cursor.moveToNext()) {
+            noteIds[size++] = cursor.getLong(0);
+        }
+        return size == noteIds.length ? noteIds : Arrays.copyOf(noteIds, size);
     }
 
     static class NoteInfoField {
@@ -169,6 +335,30 @@ public class NoteAPI {
         }
     }
 
+    static class NoteFields {
+        private final long noteId;
+        private final long modelId;
+        private final String[] fields;
+
+        public NoteFields(long noteId, long modelId, String[] fields) {
+            this.noteId = noteId;
+            this.modelId = modelId;
+            this.fields = fields;
+        }
+
+        public long getNoteId() {
+            return noteId;
+        }
+
+        public long getModelId() {
+            return modelId;
+        }
+
+        public String[] getFields() {
+            return fields;
+        }
+    }
+
     static class Model {
         private final long modelId;
         private final String modelName;
@@ -194,14 +384,92 @@ public class NoteAPI {
     }
 
     public List<NoteInfo> notesInfo(ArrayList<Long> noteIds) throws Exception {
+        return notesInfo(noteIds, null);
+    }
+
+    /**
+     * @param fieldNames the names of the fields to return, or null to return all fields
+     */
+    public List<NoteInfo> notesInfo(ArrayList<Long> noteIds, Set<String> fieldNames) throws Exception {
+        if (noteIds.size() <= NOTES_INFO_CHUNK_SIZE) {
+            return queryNotesInfo(getNidQuery(noteIds), fieldNames);
+        }
+
+        // A single query returns each note once, but in no defined order (for nid: searches, usually
+        // the order of their IDs). The chunked results are put into the order of their IDs, so that
+        // they don't depend on how the IDs were split up.
+        List<Long> sortedIds = new ArrayList<>(new TreeSet<>(noteIds));
+        List<Future<List<NoteInfo>>> futures = new ArrayList<>();
+        for (int start = 0; start < sortedIds.size(); start += NOTES_INFO_CHUNK_SIZE) {
+            List<Long> chunk = sortedIds.subList(start, Math.min(start + NOTES_INFO_CHUNK_SIZE, sortedIds.size()));
+            String nidQuery = getNidQuery(chunk);
+            futures.add(NOTES_INFO_EXECUTOR.submit(() -> queryNotesInfo(nidQuery, fieldNames)));
+        }
+
+        List<NoteInfo> notesInfoList = new ArrayList<>(sortedIds.size());
+        try {
+            for (Future<List<NoteInfo>> future : futures) {
+                List<NoteInfo> chunkInfo = future.get();
+                if (chunkInfo == null) {
+                    return null;
+                }
+                notesInfoList.addAll(chunkInfo);
+            }
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        } finally {
+            for (Future<List<NoteInfo>> future : futures) {
+                future.cancel(false);
+            }
+        }
+        notesInfoList.sort(Comparator.comparingLong(NoteInfo::getNoteId));
+        return notesInfoList;
+    }
+
+    /**
+     * Same as findNotes() followed by notesInfo(), but within a single request
+     *
+     * @param fieldNames the names of the fields to return, or null to return all fields
+     * @param offset, limit, afterId see findNotes()
+     */
+    public List<NoteInfo> findNotesInfo(String query, Set<String> fieldNames, int offset, int limit, long afterId) throws Exception {
+        if (offset == 0 && limit < 0 && afterId < 0) {
+            // without paging, a single query of the search returns all of the notes
+            return queryNotesInfo(query, fieldNames);
+        }
+
+        // AnkiDroid loads every matching note (with all of its fields) for each search, no matter how
+        // much of it is read. So only the IDs are searched for, and then just the notes of the page.
+        long[] pageIds = findNotes(query, offset, limit, afterId);
+        ArrayList<Long> noteIds = new ArrayList<>(pageIds.length);
+        Map<Long, Integer> positions = new HashMap<>();
+        for (long noteId : pageIds) {
+            positions.put(noteId, noteIds.size());
+            noteIds.add(noteId);
+        }
+        if (noteIds.isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        List<NoteInfo> notesInfoList = notesInfo(noteIds, fieldNames);
+        if (notesInfoList != null) {
+            // in the order of the page
+            notesInfoList.sort(Comparator.comparingInt(noteInfo -> positions.get(noteInfo.getNoteId())));
+        }
+        return notesInfoList;
+    }
+
+    private static String getNidQuery(List<Long> noteIds) {
+        return "nid:" + TextUtils.join(",", noteIds);
+    }
+
+    private List<NoteInfo> queryNotesInfo(String query, Set<String> fieldNames) throws Exception {
         List<NoteInfo> notesInfoList = new ArrayList<>();
-        String nidQuery = "nid:" + TextUtils.join(",", noteIds);
-        Map<Long, Model> cache = new HashMap<>();
 
         Cursor cursor = this.resolver.query(
                 FlashCardsContract.Note.CONTENT_URI,
                 NOTES_INFO_PROJECTION,
-                nidQuery,
+                query,
                 null,
                 null,
                 null
@@ -223,24 +491,30 @@ public class NoteAPI {
                 long mid = cursor.getLong(midIdx);
                 List<String> tags = Arrays.asList(Utility.splitTags(cursor.getString(tagsIdx)));
                 String[] fieldValues = Utility.splitFields(cursor.getString(fldsIdx));
-                Model model = null;
-
-                if (cache.containsKey(mid)) {
-                    model = cache.get(mid);
+                if (fieldValues == null) {
+                    throw new Exception("Couldn't get the fields of note " + id);
                 }
-                else {
-                    String[] fieldNames = api.getFieldList(mid);
-                    String modelName = api.getModelName(mid);
-
-                    model = new Model(mid, modelName, fieldNames);
-                    cache.put(mid, model);
+                Model model = modelCache.getModel(mid);
+                if (model != null && model.getFieldNames().length != fieldValues.length) {
+                    // the model was changed since it was cached, and the change wasn't reported
+                    modelCache.invalidate();
+                    model = modelCache.getModel(mid);
+                }
+                if (model == null) {
+                    throw new Exception("Couldn't get model " + mid);
+                }
+                if (model.getFieldNames().length != fieldValues.length) {
+                    throw new Exception("The fields of note " + id + " don't match its model");
                 }
 
                 Map<String, NoteInfoField> fields = new HashMap<>();
-                String[] fieldNames = model.getFieldNames();
+                String[] modelFieldNames = model.getFieldNames();
 
-                for (int i = 0; i < fieldNames.length; i++) {
-                    String fieldName = fieldNames[i];
+                for (int i = 0; i < modelFieldNames.length; i++) {
+                    String fieldName = modelFieldNames[i];
+                    if (fieldNames != null && !fieldNames.contains(fieldName)) {
+                        continue;
+                    }
                     String fieldValue = fieldValues[i];
                     NoteInfoField noteInfoField = new NoteInfoField(fieldValue, i);
                     fields.put(fieldName, noteInfoField);
@@ -31,6 +31,10 @@ public final class Utility {
         return fields != null? fields.split(FIELD_SEPARATOR, -1): null;
     }
 
+    public static String joinFields(String[] fields) {
+        return fields != null? String.join(FIELD_SEPARATOR, fields): null;
+    }
+
     public static long getFieldChecksum(String data) {
         final String SHA1_ZEROES =  "0000000000000000000000000000000000000000";
         String strippedData = stripHTMLMedia(data);
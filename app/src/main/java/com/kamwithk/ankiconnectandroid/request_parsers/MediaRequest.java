@@ -14,7 +14,7 @@ import java.util.Optional;
 
 /**
  * Simple class that encodes the media passed into an addNote, updateNoteFields, etc request.
- * Currently very limited; only supports the type, data, filename, and fields[] part of the request.
+ * Currently very limited; only supports the type, data, url, path, filename, and fields[] part of the request.
  */
 public class MediaRequest {
     private final MediaType mediaType;
@@ -23,6 +23,7 @@ public class MediaRequest {
 
     private Optional<byte[]> data = Optional.empty();
     private Optional<String> url = Optional.empty();
+    private Optional<String> path = Optional.empty();
 
     public enum MediaType {
         AUDIO,
@@ -63,6 +64,17 @@ public class MediaRequest {
         return url;
     }
 
+    public void setPath(String path) {
+        this.path = Optional.of(path);
+    }
+
+    /**
+     * A file path or content:// URI on the device (see MediaPaths)
+     */
+    public Optional<String> getPath() {
+        return path;
+    }
+
 
 
     @NonNull
@@ -92,6 +104,10 @@ public class MediaRequest {
             request.setUrl(mediaObject.get("url").getAsString());
         }
 
+        if (mediaObject.has("path")) {
+            request.setPath(mediaObject.get("path").getAsString());
+        }
+
         if (mediaObject.has("data")) {
             request.setData(Base64.decode(mediaObject.get("data").getAsString(), Base64.DEFAULT));
         }
@@ -0,0 +1,49 @@
+package com.kamwithk.ankiconnectandroid.request_parsers;
+
+import androidx.annotation.NonNull;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.reflect.TypeToken;
+
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Map;
+
+/**
+ * The note of an updateNoteFields request: its ID, the fields to change and the media to add.
+ */
+public class NoteUpdateRequest {
+    private final long id;
+    private final Map<String, String> fields;
+    private final ArrayList<MediaRequest> mediaRequests;
+
+    public NoteUpdateRequest(long id, Map<String, String> fields, ArrayList<MediaRequest> mediaRequests) {
+        this.id = id;
+        this.fields = fields;
+        this.mediaRequests = mediaRequests;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public Map<String, String> getFields() {
+        return fields;
+    }
+
+    public ArrayList<MediaRequest> getMediaRequests() {
+        return mediaRequests;
+    }
+
+    @NonNull
+    public static NoteUpdateRequest fromJson(JsonElement noteElement) {
+        JsonObject noteObject = noteElement.getAsJsonObject();
+
+        long id = noteObject.get("id").getAsLong();
+        Type fieldType = new TypeToken<Map<String, String>>() {}.getType();
+        Map<String, String> fields = Parser.gson.fromJson(noteObject.get("fields"), fieldType);
+
+        return new NoteUpdateRequest(id, fields, Parser.getMediaRequests(noteObject));
+    }
+}
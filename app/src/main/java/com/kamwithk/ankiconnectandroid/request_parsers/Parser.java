@@ -71,6 +71,18 @@ public class Parser {
         return gson.fromJson(raw_data.get("params").getAsJsonObject().get("note").getAsJsonObject().get("fields"), fieldType);
     }
 
+    public static NoteUpdateRequest getUpdateNoteFieldsRequest(JsonObject raw_data) {
+        return NoteUpdateRequest.fromJson(raw_data.get("params").getAsJsonObject().get("note"));
+    }
+
+    public static ArrayList<NoteUpdateRequest> getUpdateNotesFieldsRequests(JsonObject raw_data) {
+        ArrayList<NoteUpdateRequest> updates = new ArrayList<>();
+        for (JsonElement note : raw_data.get("params").getAsJsonObject().get("notes").getAsJsonArray()) {
+            updates.add(NoteUpdateRequest.fromJson(note));
+        }
+        return updates;
+    }
+
     /**
      * For each key ("audio", "video", "picture"), expect EITHER a list or singular json object!
      * According to the official Anki-Connect docs:
@@ -78,12 +90,18 @@ public class Parser {
      * > or an array of objects
      */
     public static ArrayList<MediaRequest> getNoteMediaRequests(JsonObject raw_data) {
+        return getMediaRequests(raw_data.get("params").getAsJsonObject().get("note").getAsJsonObject());
+    }
+
+    /**
+     * Same as getNoteMediaRequests(), for the object of a single note
+     */
+    public static ArrayList<MediaRequest> getMediaRequests(JsonObject note_json) {
         Map<String, MediaRequest.MediaType> media_types = Map.of(
             "audio", MediaRequest.MediaType.AUDIO,
             "video", MediaRequest.MediaType.VIDEO,
             "picture", MediaRequest.MediaType.PICTURE
         );
-        JsonObject note_json = raw_data.get("params").getAsJsonObject().get("note").getAsJsonObject();
 
         ArrayList<MediaRequest> request_medias = new ArrayList<>();
         for (Map.Entry<String, MediaRequest.MediaType> entry: media_types.entrySet()) {
@@ -137,10 +155,69 @@ public class Parser {
         return noteIds;
     }
 
+    /**
+     * @return the names of the fields to return, or null if all fields should be returned
+     */
+    public static Set<String> getNotesInfoFields(JsonObject raw_data) {
+        JsonElement fields = raw_data.get("params").getAsJsonObject().get("fields");
+        if (fields == null || fields.isJsonNull()) {
+            return null;
+        }
+        Type fieldType = new TypeToken<Set<String>>() {}.getType();
+        return gson.fromJson(fields, fieldType);
+    }
+
+    /**
+     * @return the number of results to skip, 0 by default
+     */
+    public static int getQueryOffset(JsonObject raw_data) throws Exception {
+        JsonElement offset = raw_data.get("params").getAsJsonObject().get("offset");
+        if (offset == null || offset.isJsonNull()) {
+            return 0;
+        }
+        if (offset.getAsInt() < 0) {
+            throw new Exception("offset must not be negative");
+        }
+        return offset.getAsInt();
+    }
+
+    /**
+     * @return the maximum number of results, or -1 if there is no limit
+     */
+    public static int getQueryLimit(JsonObject raw_data) throws Exception {
+        JsonElement limit = raw_data.get("params").getAsJsonObject().get("limit");
+        if (limit == null || limit.isJsonNull()) {
+            return -1;
+        }
+        if (limit.getAsInt() < 0) {
+            throw new Exception("limit must not be negative");
+        }
+        return limit.getAsInt();
+    }
+
+    /**
+     * @return the ID that all results come after, or -1 if there is none
+     */
+    public static long getQueryAfterId(JsonObject raw_data) {
+        JsonElement afterId = raw_data.get("params").getAsJsonObject().get("afterId");
+        if (afterId == null || afterId.isJsonNull()) {
+            return -1;
+        }
+        return afterId.getAsLong();
+    }
+
     public static String getMediaFilename(JsonObject raw_data) {
         return raw_data.get("params").getAsJsonObject().get("filename").getAsString();
     }
 
+    /**
+     * @return the path of the file to store, or null if the data is given instead
+     */
+    public static String getMediaPath(JsonObject raw_data) {
+        JsonElement path = raw_data.get("params").getAsJsonObject().get("path");
+        return path == null || path.isJsonNull() ? null : path.getAsString();
+    }
+
     public static byte[] getMediaData(JsonObject raw_data) {
         String encoded = raw_data.get("params").getAsJsonObject().get("data").getAsString();
         return Base64.decode(encoded, Base64.DEFAULT);
@@ -2,6 +2,7 @@ package com.kamwithk.ankiconnectandroid.routing;
 
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import com.kamwithk.ankiconnectandroid.ankidroid_api.BinaryFile;
@@ -10,17 +11,21 @@ import com.kamwithk.ankiconnectandroid.ankidroid_api.IntegratedAPI;
 import com.kamwithk.ankiconnectandroid.ankidroid_api.MediaAPI;
 import com.kamwithk.ankiconnectandroid.ankidroid_api.ModelAPI;
 import com.kamwithk.ankiconnectandroid.request_parsers.NoteRequest;
+import com.kamwithk.ankiconnectandroid.request_parsers.NoteUpdateRequest;
 import com.kamwithk.ankiconnectandroid.request_parsers.Parser;
 import com.kamwithk.ankiconnectandroid.request_parsers.MediaRequest;
 
 import fi.iki.elonen.NanoHTTPD;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import static fi.iki.elonen.NanoHTTPD.newFixedLengthResponse;
 
@@ -56,6 +61,8 @@ public class AnkiAPIRouting {
                 return modelFieldNames(raw_json);
             case "findNotes":
                 return findNotes(raw_json);
+            case "findNotesInfo":
+                return findNotesInfo(raw_json);
             case "guiBrowse":
                 return guiBrowse(raw_json);
             case "canAddNotes":
@@ -66,6 +73,8 @@ public class AnkiAPIRouting {
                 return addNote(raw_json);
             case "updateNoteFields":
                 return updateNoteFields(raw_json);
+            case "updateNotesFields":
+                return updateNotesFields(raw_json);
             case "storeMediaFile":
                 return storeMediaFile(raw_json);
             case "notesInfo":
@@ -74,13 +83,35 @@ public class AnkiAPIRouting {
                 JsonArray actions = Parser.getMultiActions(raw_json);
                 JsonArray results = new JsonArray();
 
-                for (JsonElement jsonElement : actions) {
-                    int version = Parser.get_version(jsonElement.getAsJsonObject(), 4);
-                    String routeResult = findRoute(jsonElement.getAsJsonObject());
+                int i = 0;
+                while (i < actions.size()) {
+                    JsonObject action = actions.get(i).getAsJsonObject();
+                    if (isUpdateNoteFields(action)) {
+                        // consecutive updateNoteFields actions are applied as a single batch
+                        int end = i + 1;
+                        while (end < actions.size() && isUpdateNoteFields(actions.get(end).getAsJsonObject())) {
+                            end++;
+                        }
+                        List<NoteUpdateRequest> updates = new ArrayList<>();
+                        for (int j = i; j < end; j++) {
+                            updates.add(Parser.getUpdateNoteFieldsRequest(actions.get(j).getAsJsonObject()));
+                        }
+                        integratedAPI.updateNotesFields(updates, true);
+                        for (int j = i; j < end; j++) {
+                            int version = Parser.get_version(actions.get(j).getAsJsonObject(), 4);
+                            results.add(formatSuccessReply(JsonNull.INSTANCE, version));
+                        }
+                        i = end;
+                        continue;
+                    }
+
+                    int version = Parser.get_version(action, 4);
+                    String routeResult = findRoute(action);
 
                     JsonElement routeResultJson = JsonParser.parseString(routeResult);
                     JsonElement response = formatSuccessReply(routeResultJson, version);
                     results.add(response);
+                    i++;
                 }
 
                 return Parser.gson.toJson(results);
@@ -88,6 +119,10 @@ public class AnkiAPIRouting {
                 return default_version();
         }
     }
+    private static boolean isUpdateNoteFields(JsonObject action) {
+        return action.has("action") && Parser.get_action(action).equals("updateNoteFields");
+    }
+
     /* taken from anki-connect's web.py: format_success_reply */
     public JsonElement formatSuccessReply(JsonElement raw_json, int version) {
         if (version <= 4) {
@@ -107,24 +142,43 @@ public class AnkiAPIRouting {
             Log.d("AnkiConnectAndroid", "response json: " + response);
             return returnResponse(response);
         } catch (Exception e) {
-            Map<String, String> response = new HashMap<>();
-            response.put("result", null);
+            return returnError(e);
+        }
+    }
+
+    /**
+     * Same as the storeMediaFile action, but with the file sent as is instead of in base64 (see
+     * MediaUploadRouteHandler).
+     */
+    public NanoHTTPD.Response storeMediaFileHandleError(String filename, InputStream data, long length, int version) {
+        try {
+            String response = formatSuccessReply(
+                    Parser.gson.toJsonTree(integratedAPI.storeMediaFile(filename, data, length)), version).toString();
+            Log.d("AnkiConnectAndroid", "response json: " + response);
+            return returnResponse(response);
+        } catch (Exception e) {
+            return returnError(e);
+        }
+    }
+
+    private NanoHTTPD.Response returnError(Exception e) {
+        Map<String, String> response = new HashMap<>();
+        response.put("result", null);
 
-            StringWriter sw = new StringWriter();
+        StringWriter sw = new StringWriter();
+        try {
+            try (PrintWriter pw = new PrintWriter(sw)) {
+                e.printStackTrace(pw);
+            }
+            response.put("error", e.getMessage() + sw);
+        } finally {
             try {
-                try (PrintWriter pw = new PrintWriter(sw)) {
-                    e.printStackTrace(pw);
-                }
-                response.put("error", e.getMessage() + sw);
-            } finally {
-                try {
-                    sw.close();
-                } catch (IOException ex) {
-                    ex.printStackTrace();
-                }
+                sw.close();
+            } catch (IOException ex) {
+                ex.printStackTrace();
             }
-            return newFixedLengthResponse(NanoHTTPD.Response.Status.OK, "text/json", Parser.gson.toJson(response));
         }
+        return newFixedLengthResponse(NanoHTTPD.Response.Status.OK, "text/json", Parser.gson.toJson(response));
     }
 
     private NanoHTTPD.Response returnResponse(String response) {
@@ -170,8 +224,21 @@ public class AnkiAPIRouting {
         }
     }
 
-    private String findNotes(JsonObject raw_json) {
-        return Parser.gson.toJson(integratedAPI.noteAPI.findNotes(Parser.getNoteQuery(raw_json)));
+    private String findNotes(JsonObject raw_json) throws Exception {
+        String query = Parser.getNoteQuery(raw_json);
+        int offset = Parser.getQueryOffset(raw_json);
+        int limit = Parser.getQueryLimit(raw_json);
+        long afterId = Parser.getQueryAfterId(raw_json);
+        return Parser.gson.toJson(integratedAPI.noteAPI.findNotes(query, offset, limit, afterId));
+    }
+
+    private String findNotesInfo(JsonObject raw_json) throws Exception {
+        String query = Parser.getNoteQuery(raw_json);
+        Set<String> fields = Parser.getNotesInfoFields(raw_json);
+        int offset = Parser.getQueryOffset(raw_json);
+        int limit = Parser.getQueryLimit(raw_json);
+        long afterId = Parser.getQueryAfterId(raw_json);
+        return Parser.gson.toJson(integratedAPI.noteAPI.findNotesInfo(query, fields, offset, limit, afterId));
     }
 
     private String guiBrowse(JsonObject raw_json) {
@@ -199,13 +266,13 @@ public class AnkiAPIRouting {
 
         ArrayList<MediaRequest> mediaRequests =
                 Parser.getNoteMediaRequests(raw_json);
-        integratedAPI.addMedia(noteValues, mediaRequests);
 
         String noteId = String.valueOf(integratedAPI.addNote(
                 noteValues,
                 Parser.getDeckName(raw_json),
                 Parser.getModelName(raw_json),
-                Parser.getNoteTags(raw_json)
+                Parser.getNoteTags(raw_json),
+                mediaRequests
         ));
 
         return noteId;
@@ -220,7 +287,17 @@ public class AnkiAPIRouting {
         return "null";
     }
 
+    private String updateNotesFields(JsonObject raw_json) throws Exception {
+        List<NoteUpdateRequest> updates = Parser.getUpdateNotesFieldsRequests(raw_json);
+        return Parser.gson.toJson(integratedAPI.updateNotesFieldsWithErrorDetail(updates));
+    }
+
     private String storeMediaFile(JsonObject raw_json) throws Exception {
+        String path = Parser.getMediaPath(raw_json);
+        if (path != null) {
+            return Parser.gson.toJson(mediaAPI.storeLocalMediaFile(Parser.getMediaFilename(raw_json), path));
+        }
+
         BinaryFile binaryFile = new BinaryFile();
         binaryFile.setFilename(Parser.getMediaFilename(raw_json));
         binaryFile.setData(Parser.getMediaData(raw_json));
@@ -230,6 +307,7 @@ public class AnkiAPIRouting {
 
     private String notesInfo(JsonObject raw_json) throws Exception {
         ArrayList<Long> noteIds = Parser.getNoteIds(raw_json);
-        return Parser.gson.toJson(integratedAPI.noteAPI.notesInfo(noteIds));
+        Set<String> fields = Parser.getNotesInfoFields(raw_json);
+        return Parser.gson.toJson(integratedAPI.noteAPI.notesInfo(noteIds, fields));
     }
 }
\ No newline at end of file
@@ -0,0 +1,80 @@
+package com.kamwithk.ankiconnectandroid.routing;
+
+/**
+ * A single byte range from a HTTP Range header, i.e. "bytes=0-1023".
+ * See: https://developer.mozilla.org/en-US/docs/Web/HTTP/Headers/Range
+ */
+public class ByteRange {
+    private final long start;
+    private final long end;
+
+    public ByteRange(long start, long end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    /** 0-based offset of the first byte */
+    public long getStart() {
+        return start;
+    }
+
+    /** 0-based offset of the last byte (inclusive) */
+    public long getEnd() {
+        return end;
+    }
+
+    public long getLength() {
+        return end - start + 1;
+    }
+
+    public boolean isSatisfiable(long totalLength) {
+        return start <= end && start < totalLength;
+    }
+
+    public String toContentRange(long totalLength) {
+        return "bytes " + start + "-" + end + "/" + totalLength;
+    }
+
+    /**
+     * Parses the Range header of a request against a file of the given length.
+     *
+     * @return null if the whole file should be sent, which is the case if there is no header,
+     * the header cannot be parsed or it requests multiple ranges (this is allowed by the spec).
+     * The returned range may not be satisfiable, which should be checked with isSatisfiable().
+     */
+    public static ByteRange parse(String header, long totalLength) {
+        if (header == null || !header.startsWith("bytes=") || header.contains(",")) {
+            return null;
+        }
+
+        String spec = header.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+
+        try {
+            String startStr = spec.substring(0, dash).trim();
+            String endStr = spec.substring(dash + 1).trim();
+
+            if (startStr.isEmpty()) {
+                // suffix range, i.e. "bytes=-500" means the last 500 bytes
+                long suffixLength = Long.parseLong(endStr);
+                if (suffixLength <= 0) {
+                    return new ByteRange(totalLength, totalLength - 1); // unsatisfiable
+                }
+                return new ByteRange(Math.max(0, totalLength - suffixLength), totalLength - 1);
+            }
+
+            long start = Long.parseLong(startStr);
+            long end = endStr.isEmpty() ? Long.MAX_VALUE : Long.parseLong(endStr);
+            if (start < 0 || end < start) {
+                return null;
+            }
+            // an open range that starts past the end of the file can't be satisfied, like a closed one
+            return new ByteRange(start, Math.min(end, totalLength - 1));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -3,18 +3,21 @@ package com.kamwithk.ankiconnectandroid.routing;
 import static fi.iki.elonen.NanoHTTPD.newFixedLengthResponse;
 
 import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Base64;
 import android.util.Log;
 
-import androidx.room.Room;
-import androidx.sqlite.db.SimpleSQLiteQuery;
+import androidx.preference.PreferenceManager;
 
 import com.google.gson.JsonObject;
 import com.google.gson.reflect.TypeToken;
 import com.kamwithk.ankiconnectandroid.request_parsers.Parser;
+import com.kamwithk.ankiconnectandroid.routing.database.AudioBlobInputStream;
 import com.kamwithk.ankiconnectandroid.routing.database.AudioFileEntryDao;
+import com.kamwithk.ankiconnectandroid.routing.database.AudioFileInfo;
 import com.kamwithk.ankiconnectandroid.routing.database.EntriesDatabase;
+import com.kamwithk.ankiconnectandroid.routing.database.EntriesDatabaseManager;
 import com.kamwithk.ankiconnectandroid.routing.database.Entry;
-import com.kamwithk.ankiconnectandroid.routing.database.EntryDao;
 import com.kamwithk.ankiconnectandroid.routing.localaudiosource.ForvoAudioSource;
 import com.kamwithk.ankiconnectandroid.routing.localaudiosource.JPodAltAudioSource;
 import com.kamwithk.ankiconnectandroid.routing.localaudiosource.JPodAudioSource;
@@ -24,11 +27,18 @@ import com.kamwithk.ankiconnectandroid.routing.localaudiosource.Shinmeikai8Audio
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Type;
 import java.net.URLDecoder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -43,10 +53,16 @@ import fi.iki.elonen.NanoHTTPD;
  *
  * Here are the main differences:
  * - The memory-based version is not supported. Only the SQL version is supported.
- * - The SQLite3 database is *NOT* dynamically created. This means that the user must copy/paste
- *   the generated entries.db into the correct place within their Android device. The database
- *   is not created dynamically in order to make the process of implementing this feature
- *   as simple as possible.
+ * - By default, the audio files themselves are read from the android table of the database.
+ *   Alternatively, they can be read straight from the user_files folders (see the
+ *   "local_audio_storage" setting), in which case the android table is not needed.
+ * - The SQLite3 database is *NOT* dynamically created when the server starts. The user must
+ *   either copy/paste the generated android.db into the correct place within their Android device,
+ *   or build it on the device from the user_files folders through the settings
+ *   (see EntriesDatabaseBuilder).
+ *   A replaced android.db is picked up without restarting the server (see EntriesDatabaseManager),
+ *   or when http://localhost:8765/localaudio/reload/ is opened.
+ * - Additional pack databases (android-*.db) can be placed next to android.db. They are all searched.
  * - The URIs are different:
  *   - initial get:
  *     python:  http://localhost:5050/?sources=jpod,jpod_alternate,nhk16,forvo&term={term}&reading={reading}
@@ -57,6 +73,16 @@ import fi.iki.elonen.NanoHTTPD;
  *  - NHK98 is not supported (because the audio files aren't available for the original anyways)
  */
 public class LocalAudioAPIRouting {
+    public static final String STORAGE_PREFERENCE_KEY = "local_audio_storage";
+    public static final String STORAGE_DATABASE = "database";
+    public static final String STORAGE_FILES = "files";
+
+    // one year, in seconds
+    private static final long AUDIO_CACHE_MAX_AGE = 365L * 24 * 60 * 60;
+
+    // the largest audio file that is embedded into the source list with the inline parameter
+    private static final long INLINE_MAX_SIZE = 256 * 1024;
+
     private final Context context;
 
     // sourceIdToSource is a LinkedHashMap to preserve insertion order
@@ -65,21 +91,31 @@ public class LocalAudioAPIRouting {
     public LocalAudioAPIRouting(Context context) {
         this.context = context;
 
+        this.sourceIdToSource = createSources();
+    }
+
+    public static LinkedHashMap<String, LocalAudioSource> createSources() {
         // TODO: read config
-        this.sourceIdToSource = new LinkedHashMap<>();
-        this.sourceIdToSource.put("nhk16", new NHK16AudioSource());
-        this.sourceIdToSource.put("shinmeikai8", new Shinmeikai8AudioSource());
-        this.sourceIdToSource.put("forvo", new ForvoAudioSource());
-        this.sourceIdToSource.put("jpod", new JPodAudioSource());
-        this.sourceIdToSource.put("jpod_alternate", new JPodAltAudioSource());
+        LinkedHashMap<String, LocalAudioSource> sourceIdToSource = new LinkedHashMap<>();
+        sourceIdToSource.put("nhk16", new NHK16AudioSource());
+        sourceIdToSource.put("shinmeikai8", new Shinmeikai8AudioSource());
+        sourceIdToSource.put("forvo", new ForvoAudioSource());
+        sourceIdToSource.put("jpod", new JPodAudioSource());
+        sourceIdToSource.put("jpod_alternate", new JPodAltAudioSource());
+        return sourceIdToSource;
+    }
+
+    /**
+     * Whether audio files are read from the user_files folders instead of the android table.
+     */
+    public static boolean useMediaFiles(Context context) {
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        return preferences.getString(STORAGE_PREFERENCE_KEY, STORAGE_DATABASE).equals(STORAGE_FILES);
     }
 
-    private EntriesDatabase getDB() {
-        // TODO global instance?
-        File databasePath = new File(context.getExternalFilesDir(null), "android.db");
-        EntriesDatabase db = Room.databaseBuilder(context,
-                EntriesDatabase.class, databasePath.toString()).build();
-        return db;
+    private EntriesDatabaseManager.Handle acquireDB() {
+        // opens database (creates if doesn't exist)
+        return EntriesDatabaseManager.acquire(context);
     }
 
     public NanoHTTPD.Response getAudioSourcesHandleError(Map<String, List<String>> parameters) {
@@ -88,63 +124,18 @@ public class LocalAudioAPIRouting {
         String reading = getReading(parameters);
         List<String> sources = getSources(parameters);
         List<String> users = getUser(parameters);
+        boolean inline = getInline(parameters);
 
         List<Map<String, String>> audioSourcesResult = new ArrayList<>();
-        List<String> args = new ArrayList<>();
-
 
-        // opens database (creates if doesn't exist)
-        EntriesDatabase db = getDB();
-        EntryDao entryDao = db.entryDao();
-
-        // query generator based off of the original plugin:
-        // https://github.com/Aquafina-water-bottle/local-audio-yomichan/blob/master/plugin/db_utils.py
-        // Filter results WHERE "title" = 'My Title'
-        String selection = "expression = ?\n" +
-                "AND (reading IS NULL OR reading = ?)\n";
-        args.add(term);
-        args.add(reading);
-
-        // filters by sources if necessary
-        if (sources.size() != sourceIdToSource.size()) {
-            String nQuestionMarks = String.join(",", Collections.nCopies(sources.size(), "?"));
-            selection += "AND (source in (" + nQuestionMarks + "))\n";
-            args.addAll(sources);
-        }
-
-        // filters by speakers if necessary
-        if (users.size() > 0) {
-            String nQuestionMarks = String.join(",", Collections.nCopies(users.size(), "?"));
-            selection += "AND (speaker IS NULL or speaker in (" + nQuestionMarks + "))\n";
-            args.addAll(users);
-        }
-
-        // How you want the results sorted in the resulting Cursor
-        // order by source
-        StringBuilder sortOrder = new StringBuilder("(CASE source ");
-        for (int i = 0; i < sources.size(); i++) {
-            sortOrder.append("WHEN ? THEN ").append(i).append("\n");
-            args.add(sources.get(i));
-        }
-        sortOrder.append(" END)\n");
-
-        // order by speakers if necessary
-        if (users.size() > 0) {
-            sortOrder.append(", (CASE speaker ");
-            for (int i = 0; i < users.size(); i++) {
-                sortOrder.append("WHEN ? THEN ").append(i).append("\n");
-                args.add(users.get(i));
-            }
-            sortOrder.append(" END)\n");
+        List<Entry> entries;
+        try (EntriesDatabaseManager.Handle handle = acquireDB()) {
+            // filters by sources only if necessary
+            boolean filterSources = sources.size() != sourceIdToSource.size();
+            entries = handle.getSources(term, reading, sources, users, filterSources);
         }
 
-        String queryString = "\n" +
-                "SELECT * FROM entries WHERE (" + selection + ")\n" +
-                "ORDER BY " + sortOrder + ", reading;";
-
-        SimpleSQLiteQuery query = new SimpleSQLiteQuery(queryString, args.toArray());
-        List<Entry> entries = entryDao.getSources(query);
-
+        boolean first = true;
         for (Entry entry : entries) {
             String source = entry.source;
             String file = entry.file;
@@ -156,7 +147,22 @@ public class LocalAudioAPIRouting {
             }
 
             String name = audioSource.getSourceName(entry);
-            String url = audioSource.constructFileURL(file);
+            String url = null;
+
+            // The client almost always plays the first audio source right after getting the list,
+            // so it is either sent along with the list, or loaded into the cache ahead of time
+            if (first) {
+                if (inline) {
+                    url = getDataURL(audioSource, entry);
+                }
+                if (url == null) {
+                    prefetch(audioSource, entry);
+                }
+                first = false;
+            }
+            if (url == null) {
+                url = audioSource.constructFileURL(file);
+            }
 
             Map<String, String> audioSourceEntry = new HashMap<>();
             audioSourceEntry.put("name", name);
@@ -170,7 +176,9 @@ public class LocalAudioAPIRouting {
         JsonObject response = new JsonObject();
         response.addProperty("type", "audioSourceList");
         response.add("audioSources", Parser.gson.toJsonTree(audioSourcesResult, typeToken));
-        Log.d("AnkiConnectAndroid", "audio sources json: " + Parser.gson.toJson(response));
+        if (!inline) {
+            Log.d("AnkiConnectAndroid", "audio sources json: " + Parser.gson.toJson(response));
+        }
 
         return newFixedLengthResponse(
                 NanoHTTPD.Response.Status.OK,
@@ -179,6 +187,17 @@ public class LocalAudioAPIRouting {
         );
     }
 
+    /**
+     * Opens android.db again, i.e. after it was replaced. The current database is used until the new
+     * one is ready.
+     */
+    public NanoHTTPD.Response reloadHandleError() {
+        String msg = EntriesDatabaseManager.reloadInBackground(context)
+                ? "Reloading the local audio database"
+                : "The local audio database is already being reloaded";
+        return newFixedLengthResponse(NanoHTTPD.Response.Status.OK, NanoHTTPD.MIME_PLAINTEXT, msg);
+    }
+
     private NanoHTTPD.Response audioError(String msg) {
         Log.w("AnkiConnectAndroid", msg);
         return newFixedLengthResponse(
@@ -199,6 +218,11 @@ public class LocalAudioAPIRouting {
         return Objects.requireNonNull(parameters.get("reading")).get(0);
     }
 
+    private boolean getInline(Map<String, List<String>> parameters) {
+        List<String> inline = parameters.get("inline");
+        return inline != null && !inline.isEmpty() && (inline.get(0).equals("true") || inline.get(0).equals("1"));
+    }
+
     private List<String> getUser(Map<String, List<String>> parameters) {
         List<String> _user = parameters.get("user");
         List<String> users = new ArrayList<>();
@@ -218,13 +242,16 @@ public class LocalAudioAPIRouting {
         return new ArrayList<>(sourceIdToSource.keySet());
     }
 
-    public NanoHTTPD.Response getAudioHandleError(String source, String path) {
-        if (!sourceIdToSource.containsKey(source)) {
+    public NanoHTTPD.Response getAudioHandleError(String source, String path, Map<String, String> headers) {
+        LocalAudioSource audioSource = sourceIdToSource.get(source);
+        if (audioSource == null) {
             return audioError("Unknown source: " + source);
         }
 
-        EntriesDatabase db = getDB();
-        AudioFileEntryDao audioFileEntryDao = db.audioFileEntryDao();
+        String mimeType = getMimeType(path);
+        if (mimeType == null) {
+            return audioError("File is not a supported audio file: " + path);
+        }
 
         String pathDecoded = path;
         try {
@@ -233,27 +260,336 @@ public class LocalAudioAPIRouting {
         catch (UnsupportedEncodingException ignored) {
         }
 
-        byte[] data = audioFileEntryDao.getData(pathDecoded, source);
+        if (useMediaFiles(context)) {
+            return getAudioFromFile(audioSource, pathDecoded, mimeType, headers);
+        }
+        return getAudioFromDatabase(source, pathDecoded, mimeType, headers);
+    }
+
+    private NanoHTTPD.Response getAudioFromDatabase(String source, String path, String mimeType,
+                                                    Map<String, String> headers) {
+        try (EntriesDatabaseManager.Handle handle = acquireDB()) {
+            // A file in the memory cache exists, so there is no need to read anything from the database
+            String eTag = getDatabaseETag(handle, source, path);
+            LocalAudioCache cache = LocalAudioCache.getInstance(context);
+            byte[] cached = cache.get(eTag);
+            if (cached != null) {
+                return getCachedResponse(eTag, mimeType, headers, cached);
+            }
+
+            // only the size is read here, the data itself is streamed in chunks as it is sent.
+            // The packs are searched in order, and the first one that has the file is used.
+            EntriesDatabase db = null;
+            AudioFileInfo info = null;
+            for (EntriesDatabase packDB : handle.getDatabases()) {
+                info = packDB.audioFileEntryDao().getInfo(path, source);
+                if (info != null) {
+                    db = packDB;
+                    break;
+                }
+            }
+            if (info == null) {
+                return audioNotFound(source, path);
+            }
+
+            // only checked once the file is known to exist, as "If-None-Match: *" matches any ETag
+            NanoHTTPD.Response notModifiedResponse = getNotModifiedResponse(eTag, mimeType, headers);
+            if (notModifiedResponse != null) {
+                return notModifiedResponse;
+            }
+
+            AudioFileEntryDao audioFileEntryDao = db.audioFileEntryDao();
+            int id = info.id;
+
+            if (cache.fits(info.length)) {
+                // small enough to be cached, so the whole file is read at once
+                byte[] data = audioFileEntryDao.getData(path, source);
+                if (data != null) {
+                    cache.put(eTag, data);
+                    return newAudioResponse(mimeType, data.length, headers, eTag,
+                            (offset, length) -> new ByteArrayInputStream(data, (int) offset, (int) length));
+                }
+            }
+
+            // the stream keeps the database open until the response has been sent
+            return newAudioResponse(mimeType, info.length, headers, eTag,
+                    (offset, length) -> new AudioBlobInputStream(audioFileEntryDao, id, offset, length,
+                            handle.retain()));
+        }
+    }
+
+    private NanoHTTPD.Response getAudioFromFile(LocalAudioSource audioSource, String path, String mimeType,
+                                                Map<String, String> headers) {
+        File file = audioSource.getMediaFile(context.getExternalFilesDir(null), path);
+        if (file == null || !file.isFile()) {
+            return audioNotFound(audioSource.getSourceID(), path);
+        }
+
+        String eTag = getFileETag(file);
+        LocalAudioCache cache = LocalAudioCache.getInstance(context);
+        byte[] cached = cache.get(eTag);
+        if (cached != null) {
+            return getCachedResponse(eTag, mimeType, headers, cached);
+        }
+        NanoHTTPD.Response notModifiedResponse = getNotModifiedResponse(eTag, mimeType, headers);
+        if (notModifiedResponse != null) {
+            return notModifiedResponse;
+        }
+
+        if (cache.fits(file.length())) {
+            try {
+                byte[] data = readFile(file);
+                cache.put(eTag, data);
+                return newAudioResponse(mimeType, data.length, headers, eTag,
+                        (offset, length) -> new ByteArrayInputStream(data, (int) offset, (int) length));
+            } catch (IOException e) {
+                Log.w("AnkiConnectAndroid", "Could not read audio file: " + file, e);
+            }
+        }
+
+        // NanoHTTPD only reads as many bytes as the response length, so the stream does not need
+        // to be limited to the end of the range
+        return newAudioResponse(mimeType, file.length(), headers, eTag, (offset, length) -> {
+            FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+            try {
+                channel.position(offset);
+            } catch (IOException e) {
+                // closing the channel closes the file as well
+                channel.close();
+                throw e;
+            }
+            return Channels.newInputStream(channel);
+        });
+    }
+
+    /**
+     * Returns a response for a file that is in the memory cache, without reading it from storage.
+     */
+    private NanoHTTPD.Response getCachedResponse(String eTag, String mimeType, Map<String, String> headers,
+                                                 byte[] cached) {
+        NanoHTTPD.Response notModifiedResponse = getNotModifiedResponse(eTag, mimeType, headers);
+        if (notModifiedResponse != null) {
+            return notModifiedResponse;
+        }
+        return newAudioResponse(mimeType, cached.length, headers, eTag,
+                (offset, length) -> new ByteArrayInputStream(cached, (int) offset, (int) length));
+    }
+
+    /**
+     * Returns a response if the browser already has the file. Must only be called once the file is
+     * known to exist.
+     */
+    private NanoHTTPD.Response getNotModifiedResponse(String eTag, String mimeType, Map<String, String> headers) {
+        if (!matchesETag(headers.get("if-none-match"), eTag)) {
+            return null;
+        }
+        NanoHTTPD.Response response = newFixedLengthResponse(NanoHTTPD.Response.Status.NOT_MODIFIED,
+                mimeType, "");
+        addCacheHeaders(response, eTag);
+        return response;
+    }
+
+    private NanoHTTPD.Response audioNotFound(String source, String path) {
+        Log.w("AnkiConnectAndroid", "Audio file not found: " + source + "/" + path);
+        return newFixedLengthResponse(NanoHTTPD.Response.Status.NOT_FOUND, NanoHTTPD.MIME_PLAINTEXT,
+                "File not found: " + path);
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            byte[] data = new byte[(int) randomAccessFile.length()];
+            randomAccessFile.readFully(data);
+            return data;
+        }
+    }
+
+    private void prefetch(LocalAudioSource audioSource, Entry entry) {
+        if (getMimeType(entry.file) == null) {
+            return;
+        }
+        String key = getAudioKey(audioSource, entry);
+        if (key == null) {
+            return;
+        }
+        LocalAudioCache cache = LocalAudioCache.getInstance(context);
+        cache.prefetch(key, () -> readAudioData(audioSource, entry, cache.getMaxFileSize()));
+    }
+
+    /**
+     * Returns the audio file of the entry as a data: URL, so that the client can play it without
+     * making another request. Returns null if the file can't be read or is too large.
+     */
+    private String getDataURL(LocalAudioSource audioSource, Entry entry) {
+        String mimeType = getMimeType(entry.file);
+        String key = getAudioKey(audioSource, entry);
+        if (mimeType == null || key == null) {
+            return null;
+        }
+
+        LocalAudioCache cache = LocalAudioCache.getInstance(context);
+        byte[] data = cache.get(key);
+        if (data == null) {
+            try {
+                data = readAudioData(audioSource, entry, INLINE_MAX_SIZE);
+            } catch (IOException e) {
+                Log.w("AnkiConnectAndroid", "Could not read audio file: " + entry.file, e);
+                return null;
+            }
+            if (data == null) {
+                return null;
+            }
+            cache.put(key, data);
+        } else if (data.length > INLINE_MAX_SIZE) {
+            return null;
+        }
+        return "data:" + mimeType + ";base64," + Base64.encodeToString(data, Base64.NO_WRAP);
+    }
+
+    /**
+     * The key of the entry's audio file within the cache (its ETag), or null if the file doesn't exist.
+     */
+    private String getAudioKey(LocalAudioSource audioSource, Entry entry) {
+        if (useMediaFiles(context)) {
+            File file = audioSource.getMediaFile(context.getExternalFilesDir(null), entry.file);
+            return file == null || !file.isFile() ? null : getFileETag(file);
+        }
+        try (EntriesDatabaseManager.Handle handle = acquireDB()) {
+            return getDatabaseETag(handle, entry.source, entry.file);
+        }
+    }
+
+    /**
+     * Reads the whole audio file of the entry, or returns null if it doesn't exist or is larger than maxLength.
+     */
+    private byte[] readAudioData(LocalAudioSource audioSource, Entry entry, long maxLength) throws IOException {
+        if (useMediaFiles(context)) {
+            File file = audioSource.getMediaFile(context.getExternalFilesDir(null), entry.file);
+            if (file == null || !file.isFile() || file.length() > maxLength) {
+                return null;
+            }
+            return readFile(file);
+        }
+
+        try (EntriesDatabaseManager.Handle handle = acquireDB()) {
+            for (EntriesDatabase db : handle.getDatabases()) {
+                AudioFileEntryDao audioFileEntryDao = db.audioFileEntryDao();
+                AudioFileInfo info = audioFileEntryDao.getInfo(entry.file, entry.source);
+                if (info != null) {
+                    return info.length > maxLength ? null : audioFileEntryDao.getData(entry.file, entry.source);
+                }
+            }
+            return null;
+        }
+    }
+
+    private interface AudioStreamOpener {
+        InputStream open(long offset, long length) throws IOException;
+    }
+
+    /**
+     * Creates a response that streams the requested part of an audio file.
+     * A Range header is supported so that browsers can seek, and can start playing the file
+     * before all of it has been read.
+     */
+    private NanoHTTPD.Response newAudioResponse(String mimeType, long totalLength, Map<String, String> headers,
+                                                String eTag, AudioStreamOpener opener) {
+        ByteRange range = ByteRange.parse(headers.get("range"), totalLength);
+
+        // If-Range: only send the range if the browser's partial copy is of the same file
+        String ifRange = headers.get("if-range");
+        if (ifRange != null && !ifRange.trim().equals(eTag)) {
+            range = null;
+        }
+
+        NanoHTTPD.Response response;
+        try {
+            if (range == null) {
+                response = newFixedLengthResponse(NanoHTTPD.Response.Status.OK, mimeType,
+                        opener.open(0, totalLength), totalLength);
+            } else if (!range.isSatisfiable(totalLength)) {
+                response = newFixedLengthResponse(NanoHTTPD.Response.Status.RANGE_NOT_SATISFIABLE,
+                        NanoHTTPD.MIME_PLAINTEXT, "");
+                response.addHeader("Content-Range", "bytes */" + totalLength);
+            } else {
+                response = newFixedLengthResponse(NanoHTTPD.Response.Status.PARTIAL_CONTENT, mimeType,
+                        opener.open(range.getStart(), range.getLength()), range.getLength());
+                response.addHeader("Content-Range", range.toContentRange(totalLength));
+            }
+        } catch (IOException e) {
+            Log.w("AnkiConnectAndroid", "Could not read audio file", e);
+            return newFixedLengthResponse(NanoHTTPD.Response.Status.INTERNAL_ERROR, NanoHTTPD.MIME_PLAINTEXT,
+                    "Could not read audio file: " + e);
+        }
+
+        response.addHeader("Accept-Ranges", "bytes");
+        addCacheHeaders(response, eTag);
+        return response;
+    }
+
+    /**
+     * The audio files never change for a given android.db, so the ETag is derived from the database
+     * file itself (rather than the file contents) and can be computed without reading the file.
+     */
+    private String getDatabaseETag(EntriesDatabaseManager.Handle handle, String source, String path) {
+        File databaseFile = EntriesDatabase.getDatabaseFile(context);
+        return getETag(databaseFile.getAbsolutePath(), handle.getVersion(), source, path);
+    }
+
+    private String getFileETag(File file) {
+        return getETag(file.getAbsolutePath(), String.valueOf(file.length()), String.valueOf(file.lastModified()));
+    }
+
+    private String getETag(String... identity) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            byte[] digest = md.digest(String.join("\n", identity).getBytes(StandardCharsets.UTF_8));
+            StringBuilder eTag = new StringBuilder("\"");
+            for (byte b : digest) {
+                eTag.append(String.format("%02x", b));
+            }
+            return eTag.append("\"").toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Error making ETag with SHA-1 algorithm", e);
+        }
+    }
+
+    private boolean matchesETag(String ifNoneMatch, String eTag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            // If-None-Match uses weak comparison, so the W/ prefix is ignored
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals("*") || candidate.equals(eTag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void addCacheHeaders(NanoHTTPD.Response response, String eTag) {
+        response.addHeader("ETag", eTag);
+        response.addHeader("Cache-Control", "public, max-age=" + AUDIO_CACHE_MAX_AGE);
+    }
 
+    private String getMimeType(String path) {
         // https://developer.mozilla.org/en-US/docs/Web/HTTP/Basics_of_HTTP/MIME_types/Common_types
-        String mimeType = null;
         if (path.endsWith(".mp3")) {
-            mimeType = "audio/mpeg";
+            return "audio/mpeg";
         } else if (path.endsWith(".aac")) {
-            mimeType = "audio/aac";
+            return "audio/aac";
         } else if (path.endsWith(".m4a")) {
-            mimeType = "audio/mp4";
+            return "audio/mp4";
         } else if (path.endsWith(".ogg") || path.endsWith(".oga") || path.endsWith(".opus")) {
-            mimeType = "audio/ogg";
+            return "audio/ogg";
         } else if (path.endsWith(".flac")) {
-            mimeType = "audio/flac";
+            return "audio/flac";
         } else if (path.endsWith(".wav")) {
-            mimeType = "audio/wav";
+            return "audio/wav";
         }
-        if (mimeType == null) {
-            return audioError("File is not a supported audio file: " + path);
-        }
-        return newFixedLengthResponse(NanoHTTPD.Response.Status.OK, mimeType, new ByteArrayInputStream(data), data.length);
-
+        return null;
     }
 }
@@ -0,0 +1,125 @@
+package com.kamwithk.ankiconnectandroid.routing;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+import android.util.LruCache;
+
+import androidx.preference.PreferenceManager;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps recently served local audio files in memory, so that replaying a file (which is very common,
+ * i.e. with Yomitan's auto-play) doesn't have to read it from the database again.
+ *
+ * The cache is bounded by the total number of bytes stored, which is set in the settings.
+ */
+public class LocalAudioCache {
+    public static final String PREFERENCE_KEY = "local_audio_cache_size";
+    public static final int DEFAULT_SIZE_MB = 16;
+
+    private static LocalAudioCache instance;
+
+    private final LruCache<String, byte[]> cache;
+    private final ExecutorService prefetchExecutor = Executors.newSingleThreadExecutor();
+
+    private LocalAudioCache(int maxBytes) {
+        cache = new LruCache<String, byte[]>(Math.max(maxBytes, 1)) {
+            @Override
+            protected int sizeOf(String key, byte[] value) {
+                return value.length;
+            }
+        };
+    }
+
+    /**
+     * Returns the process-wide cache, resized to the current setting if it was changed.
+     */
+    public static synchronized LocalAudioCache getInstance(Context context) {
+        int maxBytes = getMaxBytesSetting(context);
+        if (instance == null) {
+            instance = new LocalAudioCache(maxBytes);
+        } else if (instance.cache.maxSize() != Math.max(maxBytes, 1)) {
+            instance.cache.resize(Math.max(maxBytes, 1));
+        }
+        return instance;
+    }
+
+    private static int getMaxBytesSetting(Context context) {
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        String sizeMb = preferences.getString(PREFERENCE_KEY, String.valueOf(DEFAULT_SIZE_MB));
+        long maxBytes;
+        try {
+            // limited before it is multiplied, so that it can't overflow
+            long mb = Math.min(Math.max(0, Long.parseLong(sizeMb.trim())), Integer.MAX_VALUE);
+            maxBytes = mb * 1024L * 1024L;
+        } catch (NumberFormatException e) {
+            maxBytes = DEFAULT_SIZE_MB * 1024L * 1024L;
+        }
+        // the files are kept on the heap, so the cache can't be allowed to take up most of it
+        return (int) Math.min(maxBytes, getMaxAllowedBytes());
+    }
+
+    private static long getMaxAllowedBytes() {
+        return Math.min(Runtime.getRuntime().maxMemory() / 4, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Releases memory when the system is running low. Should be called from onTrimMemory().
+     */
+    public static synchronized void onTrimMemory(int level) {
+        if (instance == null) {
+            return;
+        }
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            instance.cache.evictAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            instance.cache.trimToSize(instance.cache.maxSize() / 2);
+        }
+    }
+
+    /**
+     * Whether a file of the given size would be stored. A single file is not allowed to take up
+     * more than a quarter of the cache, so that one large file doesn't evict everything else.
+     */
+    public boolean fits(long length) {
+        return length <= getMaxFileSize();
+    }
+
+    public long getMaxFileSize() {
+        return cache.maxSize() / 4;
+    }
+
+    public byte[] get(String key) {
+        return cache.get(key);
+    }
+
+    public void put(String key, byte[] data) {
+        if (data != null && fits(data.length)) {
+            cache.put(key, data);
+        }
+    }
+
+    /**
+     * Loads a file into the cache in the background, if it isn't already cached.
+     */
+    public void prefetch(String key, Callable<byte[]> loader) {
+        if (cache.maxSize() <= 1 || cache.get(key) != null) {
+            return;
+        }
+        prefetchExecutor.execute(() -> {
+            if (cache.get(key) != null) {
+                return;
+            }
+            try {
+                put(key, loader.call());
+            } catch (Exception e) {
+                Log.w("AnkiConnectAndroid", "Could not prefetch audio file: " + key, e);
+            }
+        });
+    }
+}
@@ -44,6 +44,8 @@ public class LocalAudioRouteHandler extends RouterNanoHTTPD.DefaultHandler {
         String uri = session.getUri();
         if (uri.equals("/localaudio/get/")) { // get sources
             return routing.getAudioSourcesHandleError(session.getParameters());
+        } else if (uri.equals("/localaudio/reload/")) {
+            return routing.reloadHandleError();
         }
 
         // otherwise, it's getting the actual audio file instead
@@ -53,6 +55,6 @@ public class LocalAudioRouteHandler extends RouterNanoHTTPD.DefaultHandler {
         if (uriComponents.length != 4) {
             return newFixedLengthResponse(NanoHTTPD.Response.Status.BAD_REQUEST, MIME_PLAINTEXT, "Invalid uri: " + uri);
         }
-        return routing.getAudioHandleError(uriComponents[2], uriComponents[3]);
+        return routing.getAudioHandleError(uriComponents[2], uriComponents[3], session.getHeaders());
     }
 }
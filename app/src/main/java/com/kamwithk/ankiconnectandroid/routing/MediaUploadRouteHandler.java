@@ -0,0 +1,211 @@
+package com.kamwithk.ankiconnectandroid.routing;
+
+import static fi.iki.elonen.NanoHTTPD.MIME_PLAINTEXT;
+import static fi.iki.elonen.NanoHTTPD.newFixedLengthResponse;
+
+import android.content.Context;
+
+import com.kamwithk.ankiconnectandroid.ankidroid_api.IntegratedAPI;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.router.RouterNanoHTTPD;
+
+/**
+ * Stores a media file sent as is, instead of in base64 within the JSON of the storeMediaFile action.
+ * The response is the same as the one of the storeMediaFile action.
+ *
+ * The file can be sent in two ways:
+ * - POST /storeMediaFile?filename=NAME with the file as the body (i.e. application/octet-stream).
+ *   The body is streamed straight into the media spool.
+ * - POST /storeMediaFile as multipart/form-data, with the file in the "file" part. The filename is
+ *   taken from the filename parameter, or otherwise from the part.
+ *
+ * The version parameter works the same as in the JSON actions.
+ */
+public class MediaUploadRouteHandler extends RouterNanoHTTPD.DefaultHandler {
+    private static final String FILE_PART = "file";
+
+    private AnkiAPIRouting ankiAPIRouting = null;
+
+    public MediaUploadRouteHandler() {
+        super();
+    }
+
+    @Override
+    public String getText() {
+        return "not implemented";
+    }
+
+    @Override
+    public String getMimeType() {
+        return "text/json";
+    }
+
+    @Override
+    public NanoHTTPD.Response.IStatus getStatus() {
+        return NanoHTTPD.Response.Status.OK;
+    }
+
+    public NanoHTTPD.Response get(RouterNanoHTTPD.UriResource uriResource, Map<String, String> urlParams, NanoHTTPD.IHTTPSession session) {
+        Context context = uriResource.initParameter(0, Context.class);
+        if (ankiAPIRouting == null) {
+            ankiAPIRouting = new AnkiAPIRouting(new IntegratedAPI(context));
+        }
+
+        NanoHTTPD.Response rep = storeMediaFile(session);
+        RouteHandler.addCorsHeaders(context, rep);
+        return rep;
+    }
+
+    private NanoHTTPD.Response storeMediaFile(NanoHTTPD.IHTTPSession session) {
+        if (session.getMethod() == NanoHTTPD.Method.OPTIONS) {
+            // CORS preflight, the headers are added by get()
+            return newFixedLengthResponse("");
+        }
+        if (session.getMethod() != NanoHTTPD.Method.POST) {
+            return newFixedLengthResponse(NanoHTTPD.Response.Status.METHOD_NOT_ALLOWED, MIME_PLAINTEXT,
+                    "The file must be sent with POST");
+        }
+
+        Map<String, List<String>> parameters = session.getParameters();
+        String filename = getParameter(parameters, "filename");
+        int version = 4;
+        String versionParameter = getParameter(parameters, "version");
+        if (versionParameter != null) {
+            try {
+                version = Integer.parseInt(versionParameter);
+            } catch (NumberFormatException e) {
+                return newFixedLengthResponse(NanoHTTPD.Response.Status.BAD_REQUEST, MIME_PLAINTEXT,
+                        "Invalid version: " + versionParameter);
+            }
+        }
+
+        String contentType = session.getHeaders().get("content-type");
+        if (contentType != null && contentType.toLowerCase().startsWith("multipart/form-data")) {
+            return storeMultipartFile(session, filename, version);
+        }
+
+        if (filename == null) {
+            return newFixedLengthResponse(NanoHTTPD.Response.Status.BAD_REQUEST, MIME_PLAINTEXT,
+                    "The filename parameter is missing");
+        }
+        long length;
+        try {
+            length = Long.parseLong(session.getHeaders().get("content-length"));
+        } catch (NumberFormatException e) {
+            // the body has to be read up to its end exactly, so that the connection can be reused
+            return newFixedLengthResponse(NanoHTTPD.Response.Status.BAD_REQUEST, MIME_PLAINTEXT,
+                    "The Content-Length header is missing");
+        }
+
+        BodyInputStream body = new BodyInputStream(session.getInputStream(), length);
+        NanoHTTPD.Response rep = ankiAPIRouting.storeMediaFileHandleError(filename, body, length, version);
+        try {
+            // i.e. if the file couldn't be stored, the rest of the body still has to be read, or it
+            // would be taken as the next request on the connection
+            body.skipRemaining();
+        } catch (IOException e) {
+            return newFixedLengthResponse(NanoHTTPD.Response.Status.BAD_REQUEST, MIME_PLAINTEXT,
+                    "Could not read the request: " + e.getMessage());
+        }
+        return rep;
+    }
+
+    private NanoHTTPD.Response storeMultipartFile(NanoHTTPD.IHTTPSession session, String filename, int version) {
+        // NanoHTTPD writes the parts into temporary files, which it deletes once the response is sent
+        Map<String, String> files = new HashMap<>();
+        try {
+            session.parseBody(files);
+        } catch (IOException | NanoHTTPD.ResponseException e) {
+            return newFixedLengthResponse(NanoHTTPD.Response.Status.BAD_REQUEST, MIME_PLAINTEXT,
+                    "Could not read the request: " + e.getMessage());
+        }
+
+        String path = files.get(FILE_PART);
+        if (path == null) {
+            return newFixedLengthResponse(NanoHTTPD.Response.Status.BAD_REQUEST, MIME_PLAINTEXT,
+                    "The \"" + FILE_PART + "\" part is missing");
+        }
+        if (filename == null) {
+            // the part's filename is stored as the value of its parameter
+            filename = getParameter(session.getParameters(), FILE_PART);
+        }
+        if (filename == null || filename.isEmpty()) {
+            return newFixedLengthResponse(NanoHTTPD.Response.Status.BAD_REQUEST, MIME_PLAINTEXT,
+                    "The filename parameter is missing");
+        }
+
+        File file = new File(path);
+        try (InputStream in = new FileInputStream(file)) {
+            return ankiAPIRouting.storeMediaFileHandleError(filename, in, file.length(), version);
+        } catch (IOException e) {
+            return newFixedLengthResponse(NanoHTTPD.Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT,
+                    "Could not read the uploaded file: " + e.getMessage());
+        }
+    }
+
+    /**
+     * The request body, which ends after Content-Length bytes even if the connection stays open.
+     */
+    private static class BodyInputStream extends FilterInputStream {
+        private long remaining;
+
+        BodyInputStream(InputStream in, long length) {
+            super(in);
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = super.read();
+            if (b != -1) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int bytesRead = super.read(b, off, (int) Math.min(len, remaining));
+            if (bytesRead > 0) {
+                remaining -= bytesRead;
+            }
+            return bytesRead;
+        }
+
+        @Override
+        public void close() {
+            // the connection's stream is closed by NanoHTTPD
+        }
+
+        void skipRemaining() throws IOException {
+            byte[] buffer = new byte[8192];
+            while (remaining > 0) {
+                if (read(buffer, 0, buffer.length) == -1) {
+                    throw new EOFException("The request body ended early");
+                }
+            }
+        }
+    }
+
+    private static String getParameter(Map<String, List<String>> parameters, String name) {
+        List<String> values = parameters.get(name);
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+}
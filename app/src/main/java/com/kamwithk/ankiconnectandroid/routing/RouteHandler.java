@@ -82,7 +82,7 @@ public class RouteHandler extends RouterNanoHTTPD.DefaultHandler {
         return rep;
     }
 
-    private void addCorsHeaders(Context context, NanoHTTPD.Response rep) {
+    static void addCorsHeaders(Context context, NanoHTTPD.Response rep) {
         // Add a CORS header if it is set in the preferences
         SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
         String corsHost = sharedPreferences.getString("cors_host", "");
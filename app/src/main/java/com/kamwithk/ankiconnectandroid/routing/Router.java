@@ -26,6 +26,7 @@ public class Router extends RouterNanoHTTPD {
     @Override
     public void addMappings() {
         addRoute("/", RouteHandler.class, this.context);
+        addRoute("/storeMediaFile", MediaUploadRouteHandler.class, this.context);
         addRoute("/localaudio/(.)+", LocalAudioRouteHandler.class, this.context);
         // for some reason, none of these work, so the above is used instead
         // addRoute("/localaudio/:source/(.)+", LocalAudioRouteHandler.class, this.context);
@@ -0,0 +1,104 @@
+package com.kamwithk.ankiconnectandroid.routing.database;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads an audio file from the android table in chunks, so that only a single chunk of the file is
+ * held in memory (of the app) at a time regardless of how large the file is.
+ *
+ * Each chunk is a separate substr() query, and SQLite loads the whole blob for each of them, not just
+ * the requested part. Reading a file of N bytes in chunks of C bytes therefore reads about N * N / C
+ * bytes from the database. So the chunks start small (as a range request often only needs the start
+ * of the file) and double in size up to MAX_CHUNK_SIZE, i.e. a 10 MB file takes 14 loads instead of
+ * 160 with 64 KB chunks. A chunk can't be much larger, because every row read through a cursor has to
+ * fit into a CursorWindow (2 MB by default). Files that fit into LocalAudioCache are read with a
+ * single query instead.
+ *
+ * The database is kept open by the given handle until the stream is closed.
+ */
+public class AudioBlobInputStream extends InputStream {
+    public static final int CHUNK_SIZE = 64 * 1024;
+    public static final int MAX_CHUNK_SIZE = 1024 * 1024;
+
+    private final AudioFileEntryDao dao;
+    private final int id;
+    private final long end;
+    private final Closeable handle;
+
+    private long position;
+    private byte[] chunk = new byte[0];
+    private int chunkPosition = 0;
+    private int chunkSize = CHUNK_SIZE;
+    private boolean closed = false;
+
+    /**
+     * @param offset 0-based offset of the first byte to read
+     * @param length number of bytes to read
+     * @param handle closed together with the stream
+     */
+    public AudioBlobInputStream(AudioFileEntryDao dao, int id, long offset, long length, Closeable handle) {
+        this.dao = dao;
+        this.id = id;
+        this.position = offset;
+        this.end = offset + length;
+        this.handle = handle;
+    }
+
+    private boolean fillChunk() throws IOException {
+        if (chunkPosition < chunk.length) {
+            return true;
+        }
+        if (position >= end) {
+            return false;
+        }
+
+        int toRead = (int) Math.min(chunkSize, end - position);
+        chunkSize = Math.min(chunkSize * 2, MAX_CHUNK_SIZE);
+        byte[] data = dao.getDataChunk(id, position + 1, toRead);
+        if (data == null || data.length == 0) {
+            throw new IOException("Audio file " + id + " ended before offset " + position);
+        }
+
+        chunk = data;
+        chunkPosition = 0;
+        position += data.length;
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fillChunk()) {
+            return -1;
+        }
+        return chunk[chunkPosition++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fillChunk()) {
+            return -1;
+        }
+        int count = Math.min(len, chunk.length - chunkPosition);
+        System.arraycopy(chunk, chunkPosition, b, off, count);
+        chunkPosition += count;
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return chunk.length - chunkPosition;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            handle.close();
+        }
+    }
+}
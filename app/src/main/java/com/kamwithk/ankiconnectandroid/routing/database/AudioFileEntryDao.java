@@ -7,4 +7,14 @@ import androidx.room.Query;
 public interface AudioFileEntryDao {
     @Query("SELECT data FROM android WHERE file = :file AND source = :source")
     public byte[] getData(String file, String source);
+
+    @Query("SELECT id, length(data) AS length FROM android WHERE file = :file AND source = :source")
+    public AudioFileInfo getInfo(String file, String source);
+
+    /**
+     * Reads part of a file's data.
+     * @param start 1-based offset into the data, as used by SQLite's substr()
+     */
+    @Query("SELECT substr(data, :start, :length) FROM android WHERE id = :id")
+    public byte[] getDataChunk(int id, long start, int length);
 }
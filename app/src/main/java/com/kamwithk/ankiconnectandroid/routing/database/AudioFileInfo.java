@@ -0,0 +1,12 @@
+package com.kamwithk.ankiconnectandroid.routing.database;
+
+import androidx.room.ColumnInfo;
+
+/** Location and size of an audio file stored in the android table, without its data */
+public class AudioFileInfo {
+    @ColumnInfo(name = "id")
+    public int id;
+
+    @ColumnInfo(name = "length")
+    public long length;
+}
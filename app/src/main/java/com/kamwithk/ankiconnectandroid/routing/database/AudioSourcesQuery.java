@@ -0,0 +1,174 @@
+package com.kamwithk.ankiconnectandroid.routing.database;
+
+import androidx.sqlite.db.SimpleSQLiteQuery;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Builds the query used to find the audio sources of a term.
+ *
+ * The SQL text only depends on the "shape" of the request (the number of sources and users, and
+ * whether the sources are filtered). Everything else is a bound parameter, so the text is
+ * generated once per shape and reused. Because the text is identical between calls, SQLite's
+ * per-connection statement cache can return the already prepared statement instead of compiling
+ * the query again on every lookup.
+ *
+ * If the database has normalized readings (see EntriesDatabaseOptimizer), entries whose reading only
+ * differs in its kana spelling (see ReadingNormalizer) are returned as well, but only if there is no
+ * entry with the exact reading. Both cases are searched through an index.
+ */
+public final class AudioSourcesQuery {
+    private static final Map<String, String> SQL_CACHE = new ConcurrentHashMap<>();
+
+    private AudioSourcesQuery() {
+    }
+
+    /**
+     * @param filterSources whether to only return entries from the given sources. This can be
+     *                      skipped when all known sources are requested.
+     * @param normalizedReadings whether the entries table has the normalized_reading column
+     */
+    public static SimpleSQLiteQuery create(String term, String reading, List<String> sources,
+                                           List<String> users, boolean filterSources,
+                                           boolean normalizedReadings) {
+        return new SimpleSQLiteQuery(getSql(sources, users, filterSources, normalizedReadings),
+                getArgs(term, reading, sources, users, filterSources, normalizedReadings));
+    }
+
+    /**
+     * Same as create(), but returns the output of EXPLAIN QUERY PLAN for the query instead.
+     */
+    static SimpleSQLiteQuery createQueryPlan(String term, String reading, List<String> sources,
+                                             List<String> users, boolean filterSources,
+                                             boolean normalizedReadings) {
+        return new SimpleSQLiteQuery("EXPLAIN QUERY PLAN " + getSql(sources, users, filterSources, normalizedReadings),
+                getArgs(term, reading, sources, users, filterSources, normalizedReadings));
+    }
+
+    private static String getSql(List<String> sources, List<String> users, boolean filterSources,
+                                 boolean normalizedReadings) {
+        String shape = (filterSources ? "f" : "a") + (normalizedReadings ? "n" : "") +
+                sources.size() + ":" + users.size();
+        String sql = SQL_CACHE.get(shape);
+        if (sql == null) {
+            sql = buildSql(sources.size(), users.size(), filterSources, normalizedReadings);
+            SQL_CACHE.put(shape, sql);
+        }
+        return sql;
+    }
+
+    private static Object[] getArgs(String term, String reading, List<String> sources,
+                                    List<String> users, boolean filterSources, boolean normalizedReadings) {
+        // arguments must be in the same order as the placeholders in buildSql()
+        List<Object> args = new ArrayList<>();
+        args.add(term);
+        args.add(reading);
+        if (normalizedReadings) {
+            args.add(ReadingNormalizer.normalize(reading));
+            args.add(term);
+            args.add(reading);
+            if (filterSources) {
+                args.addAll(sources);
+            }
+            args.addAll(users);
+        }
+        if (filterSources) {
+            args.addAll(sources);
+        }
+        args.addAll(users);
+        args.addAll(sources);
+        args.addAll(users);
+        return args.toArray();
+    }
+
+    // query generator based off of the original plugin:
+    // https://github.com/Aquafina-water-bottle/local-audio-yomichan/blob/master/plugin/db_utils.py
+    private static String buildSql(int numSources, int numUsers, boolean filterSources, boolean normalizedReadings) {
+        StringBuilder selection = new StringBuilder("expression = ?\n");
+        if (normalizedReadings) {
+            // Falls back to the normalized reading only if nothing has the exact reading. Only the
+            // entries that the filters below would return count, as an exact reading in a source that
+            // isn't requested shouldn't hide the normalized ones in the requested sources.
+            selection.append("AND (reading IS NULL OR reading = ?\n" +
+                    "OR (normalized_reading = ? AND NOT EXISTS (SELECT 1 FROM entries exact " +
+                    "WHERE exact.expression = ? AND exact.reading = ?\n")
+                    .append(buildFilters("exact.", numSources, numUsers, filterSources))
+                    .append(")))\n");
+        } else {
+            selection.append("AND (reading IS NULL OR reading = ?)\n");
+        }
+        selection.append(buildFilters("", numSources, numUsers, filterSources));
+
+        // order by source
+        StringBuilder sortOrder = new StringBuilder("(CASE source ");
+        for (int i = 0; i < numSources; i++) {
+            sortOrder.append("WHEN ? THEN ").append(i).append("\n");
+        }
+        sortOrder.append(" END)\n");
+
+        // order by speakers if necessary
+        if (numUsers > 0) {
+            sortOrder.append(", (CASE speaker ");
+            for (int i = 0; i < numUsers; i++) {
+                sortOrder.append("WHEN ? THEN ").append(i).append("\n");
+            }
+            sortOrder.append(" END)\n");
+        }
+
+        return "\n" +
+                "SELECT * FROM entries WHERE (" + selection + ")\n" +
+                "ORDER BY " + sortOrder + ", reading;";
+    }
+
+    private static String buildFilters(String table, int numSources, int numUsers, boolean filterSources) {
+        StringBuilder filters = new StringBuilder();
+
+        // filters by sources if necessary
+        if (filterSources) {
+            filters.append("AND (").append(table).append("source in (").append(placeholders(numSources)).append("))\n");
+        }
+
+        // filters by speakers if necessary
+        if (numUsers > 0) {
+            filters.append("AND (").append(table).append("speaker IS NULL or ").append(table)
+                    .append("speaker in (").append(placeholders(numUsers)).append("))\n");
+        }
+        return filters.toString();
+    }
+
+    /**
+     * Orders entries the same way as the ORDER BY of the query, i.e. to merge the results of several
+     * databases. As in SQLite, NULLs (including sources and speakers that aren't listed) come first.
+     */
+    public static Comparator<Entry> createComparator(List<String> sources, List<String> users) {
+        Map<String, Integer> sourceRanks = getRanks(sources);
+        Map<String, Integer> userRanks = getRanks(users);
+
+        Comparator<Entry> comparator = Comparator.comparing(entry -> sourceRanks.get(entry.source),
+                Comparator.nullsFirst(Comparator.<Integer>naturalOrder()));
+        if (!users.isEmpty()) {
+            comparator = comparator.thenComparing(entry -> entry.speaker == null ? null : userRanks.get(entry.speaker),
+                    Comparator.nullsFirst(Comparator.<Integer>naturalOrder()));
+        }
+        return comparator.thenComparing(entry -> entry.reading, Comparator.nullsFirst(Comparator.<String>naturalOrder()));
+    }
+
+    // the first occurrence wins, the same as the first matching WHEN of a CASE
+    private static Map<String, Integer> getRanks(List<String> values) {
+        Map<String, Integer> ranks = new HashMap<>();
+        for (int i = 0; i < values.size(); i++) {
+            ranks.putIfAbsent(values.get(i), i);
+        }
+        return ranks;
+    }
+
+    private static String placeholders(int count) {
+        return String.join(",", Collections.nCopies(count, "?"));
+    }
+}
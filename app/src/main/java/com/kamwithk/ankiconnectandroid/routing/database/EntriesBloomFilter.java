@@ -0,0 +1,304 @@
+package com.kamwithk.ankiconnectandroid.routing.database;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.util.Log;
+
+import androidx.preference.PreferenceManager;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * A Bloom filter over the (expression, reading) pairs of the entries table.
+ *
+ * Most terms that are looked up have no local audio at all. If the filter says that a term is not
+ * in the table, it is definitely not there, and the lookup can return an empty list without running
+ * the query. If the filter says that it might be there, the query is run as usual.
+ *
+ * The filter is built once from the database and saved next to it (i.e. android.db.bloom), so later
+ * starts only have to read the file. The file records which database it was built from, and is
+ * rebuilt if the database has changed.
+ */
+public class EntriesBloomFilter {
+    public static final String FPP_PREFERENCE_KEY = "local_audio_filter_fpp";
+    public static final String MAX_SIZE_PREFERENCE_KEY = "local_audio_filter_max_size";
+    public static final String DEFAULT_FPP_PERCENT = "1";
+    public static final String DEFAULT_MAX_SIZE_MB = "8";
+
+    private static final int FILE_MAGIC = 0x424c4f4d; // "BLOM"
+    private static final int FILE_VERSION = 2;
+    private static final int BUILD_BATCH_SIZE = 10000;
+
+    // separates the expression from the reading within a key. Entries without a reading match every
+    // reading of their expression, so they get a key of their own.
+    private static final char READING_SEPARATOR = '\u0001';
+    private static final char NO_READING = '\u0000';
+    // the readings normalized by ReadingNormalizer are added as well, for the kana variant fallback
+    private static final char NORMALIZED_READING_SEPARATOR = '\u0002';
+
+    private final long[] bits;
+    private final long numBits;
+    private final int numHashes;
+
+    private EntriesBloomFilter(long[] bits, int numHashes) {
+        this.bits = bits;
+        this.numBits = (long) bits.length * Long.SIZE;
+        this.numHashes = numHashes;
+    }
+
+    /**
+     * Whether the table might contain an entry for the term. If this returns false, the lookup
+     * query would not return any entries.
+     */
+    public boolean mightContain(String expression, String reading) {
+        // same conditions as the lookup query (see AudioSourcesQuery)
+        return contains(key(expression, null)) || (reading != null && (contains(key(expression, reading))
+                || contains(normalizedKey(expression, reading))));
+    }
+
+    private static String key(String expression, String reading) {
+        if (reading == null) {
+            return expression + NO_READING;
+        }
+        return expression + READING_SEPARATOR + reading;
+    }
+
+    private static String normalizedKey(String expression, String reading) {
+        return expression + NORMALIZED_READING_SEPARATOR + ReadingNormalizer.normalize(reading);
+    }
+
+    private boolean contains(String key) {
+        long hash1 = hash(key, 0x9e3779b97f4a7c15L);
+        long hash2 = hash(key, 0xc2b2ae3d27d4eb4fL);
+        for (int i = 0; i < numHashes; i++) {
+            long bit = Math.floorMod(hash1 + i * hash2, numBits);
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void add(String key) {
+        long hash1 = hash(key, 0x9e3779b97f4a7c15L);
+        long hash2 = hash(key, 0xc2b2ae3d27d4eb4fL);
+        for (int i = 0; i < numHashes; i++) {
+            long bit = Math.floorMod(hash1 + i * hash2, numBits);
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    // FNV-1a over the chars, followed by the MurmurHash3 finalizer to spread the bits
+    private static long hash(String key, long seed) {
+        long hash = 0xcbf29ce484222325L ^ seed;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * Loads the filter for a database, building it first if the saved filter is missing or outdated.
+     * This can take a few seconds for a large database, so it should not be called on the main thread.
+     *
+     * @return the filter, or null if it is disabled. Without a filter, every lookup has to query the database.
+     */
+    public static EntriesBloomFilter load(Context context, EntriesDatabase database, File databaseFile) {
+        File filterFile = new File(databaseFile.getPath() + ".bloom");
+
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        double fpp = parsePreference(preferences, FPP_PREFERENCE_KEY, DEFAULT_FPP_PERCENT) / 100;
+        long maxBytes = (long) (parsePreference(preferences, MAX_SIZE_PREFERENCE_KEY, DEFAULT_MAX_SIZE_MB) * 1024 * 1024);
+        if (!databaseFile.isFile() || fpp <= 0 || fpp >= 1 || maxBytes <= 0) {
+            filterFile.delete();
+            return null;
+        }
+
+        long start = System.currentTimeMillis();
+        SupportSQLiteDatabase db = database.getOpenHelper().getReadableDatabase();
+        Stamp stamp = Stamp.of(db);
+
+        EntriesBloomFilter filter = read(filterFile, stamp, fpp, maxBytes);
+        if (filter == null) {
+            filter = build(db, stamp.count, fpp, maxBytes);
+            try {
+                filter.write(filterFile, stamp, fpp, maxBytes);
+            } catch (IOException e) {
+                Log.w("AnkiConnectAndroid", "Could not save the local audio filter", e);
+            }
+        }
+        Log.i("AnkiConnectAndroid", "Loaded local audio filter for " + stamp.count + " entries (" +
+                filter.bits.length * 8 / 1024 + " KB) in " + (System.currentTimeMillis() - start) + "ms");
+        return filter;
+    }
+
+    private static double parsePreference(SharedPreferences preferences, String key, String defaultValue) {
+        try {
+            return Double.parseDouble(preferences.getString(key, defaultValue).trim());
+        } catch (NumberFormatException e) {
+            return Double.parseDouble(defaultValue);
+        }
+    }
+
+    /**
+     * Creates an empty filter that is large enough for the entries.
+     */
+    static EntriesBloomFilter create(long count, double fpp, long maxBytes) {
+        // each entry adds at most two keys
+        long n = Math.max(count * 2, 1);
+
+        // optimal size for the false positive rate, limited by the maximum size
+        long numBits = (long) Math.ceil(-n * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        numBits = Math.max(Long.SIZE, Math.min(numBits, maxBytes * 8));
+        int numHashes = (int) Math.max(1, Math.round((double) numBits / n * Math.log(2)));
+
+        return new EntriesBloomFilter(new long[(int) ((numBits + Long.SIZE - 1) / Long.SIZE)], numHashes);
+    }
+
+    long getNumBits() {
+        return numBits;
+    }
+
+    int getNumHashes() {
+        return numHashes;
+    }
+
+    void addEntry(String expression, String reading) {
+        add(key(expression, reading));
+        if (reading != null) {
+            add(normalizedKey(expression, reading));
+        }
+    }
+
+    private static EntriesBloomFilter build(SupportSQLiteDatabase db, long count, double fpp, long maxBytes) {
+        EntriesBloomFilter filter = create(count, fpp, maxBytes);
+        // read in batches by id, as a single large cursor re-runs the query whenever its window is refilled
+        long lastId = Long.MIN_VALUE;
+        int rows;
+        do {
+            rows = 0;
+            try (Cursor cursor = db.query("SELECT id, expression, reading FROM entries WHERE id > ? " +
+                    "ORDER BY id LIMIT " + BUILD_BATCH_SIZE, new Object[]{lastId})) {
+                while (cursor.moveToNext()) {
+                    lastId = cursor.getLong(0);
+                    String expression = cursor.getString(1);
+                    String reading = cursor.isNull(2) ? null : cursor.getString(2);
+                    filter.addEntry(expression, reading);
+                    rows++;
+                }
+            }
+        } while (rows == BUILD_BATCH_SIZE);
+        return filter;
+    }
+
+    private static EntriesBloomFilter read(File filterFile, Stamp stamp, double fpp, long maxBytes) {
+        if (!filterFile.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(filterFile)))) {
+            if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION || !stamp.equals(Stamp.read(in))
+                    || in.readDouble() != fpp || in.readLong() != maxBytes) {
+                return null;
+            }
+            int numHashes = in.readInt();
+            long[] bits = new long[in.readInt()];
+            for (int i = 0; i < bits.length; i++) {
+                bits[i] = in.readLong();
+            }
+            return new EntriesBloomFilter(bits, numHashes);
+        } catch (IOException e) {
+            Log.w("AnkiConnectAndroid", "Could not read the local audio filter", e);
+            return null;
+        }
+    }
+
+    private void write(File filterFile, Stamp stamp, double fpp, long maxBytes) throws IOException {
+        // written to a temporary file first, so that an interrupted write can't leave a broken filter behind
+        File tempFile = new File(filterFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FILE_VERSION);
+            stamp.write(out);
+            out.writeDouble(fpp);
+            out.writeLong(maxBytes);
+            out.writeInt(numHashes);
+            out.writeInt(bits.length);
+            for (long word : bits) {
+                out.writeLong(word);
+            }
+        }
+        if (!tempFile.renameTo(filterFile)) {
+            tempFile.delete();
+            throw new IOException("Could not move " + tempFile + " to " + filterFile);
+        }
+    }
+
+    /**
+     * Identifies the contents of the entries table. The file modification time isn't used, as it
+     * changes whenever SQLite checkpoints the write-ahead log, even if nothing was written.
+     */
+    private static class Stamp {
+        final long count;
+        final long maxId;
+        final long schemaVersion;
+
+        Stamp(long count, long maxId, long schemaVersion) {
+            this.count = count;
+            this.maxId = maxId;
+            this.schemaVersion = schemaVersion;
+        }
+
+        static Stamp of(SupportSQLiteDatabase db) {
+            long count;
+            long maxId;
+            try (Cursor cursor = db.query("SELECT count(*), max(id) FROM entries")) {
+                cursor.moveToFirst();
+                count = cursor.getLong(0);
+                maxId = cursor.getLong(1);
+            }
+            try (Cursor cursor = db.query("PRAGMA schema_version")) {
+                cursor.moveToFirst();
+                return new Stamp(count, maxId, cursor.getLong(0));
+            }
+        }
+
+        static Stamp read(DataInputStream in) throws IOException {
+            return new Stamp(in.readLong(), in.readLong(), in.readLong());
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeLong(count);
+            out.writeLong(maxId);
+            out.writeLong(schemaVersion);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Stamp)) {
+                return false;
+            }
+            Stamp other = (Stamp) o;
+            return count == other.count && maxId == other.maxId && schemaVersion == other.schemaVersion;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(count) * 31 + Long.hashCode(maxId);
+        }
+    }
+}
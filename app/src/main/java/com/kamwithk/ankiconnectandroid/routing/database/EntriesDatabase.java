@@ -1,10 +1,100 @@
 package com.kamwithk.ankiconnectandroid.routing.database;
 
+import android.content.Context;
+import android.database.Cursor;
+
 import androidx.room.Database;
+import androidx.room.Room;
 import androidx.room.RoomDatabase;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 @Database(entities = {Entry.class, AudioFileEntry.class}, version = 1)
 public abstract class EntriesDatabase extends RoomDatabase {
+    public static final String DATABASE_NAME = "android.db";
+    private static final String PACK_PREFIX = "android-";
+    private static final String PACK_SUFFIX = ".db";
+
     public abstract EntryDao entryDao();
     public abstract AudioFileEntryDao audioFileEntryDao();
+
+    // whether the entries table has the normalized_reading column, looked up once and cached
+    private volatile Boolean normalizedReadings;
+
+    public boolean hasNormalizedReadings() {
+        Boolean result = normalizedReadings;
+        if (result == null) {
+            result = EntriesDatabaseOptimizer.hasNormalizedReadings(getOpenHelper().getReadableDatabase());
+            normalizedReadings = result;
+        }
+        return result;
+    }
+
+    /**
+     * Should be called after the layout of the entries table was changed (see EntriesDatabaseOptimizer).
+     */
+    public void onLayoutChanged() {
+        normalizedReadings = null;
+    }
+
+    /**
+     * Copies everything in the write-ahead log into the database file and empties the log, so that
+     * the file is complete on its own.
+     *
+     * @return false if the checkpoint couldn't be completed, i.e. because of a lookup running at the
+     * same time
+     */
+    public boolean checkpoint() {
+        try (Cursor cursor = getOpenHelper().getWritableDatabase().query("PRAGMA wal_checkpoint(TRUNCATE)")) {
+            // the first column is 1 if the checkpoint was blocked
+            return cursor.moveToFirst() && cursor.getInt(0) == 0;
+        }
+    }
+
+    public static File getDatabaseFile(Context context) {
+        return new File(context.getExternalFilesDir(null), DATABASE_NAME);
+    }
+
+    /**
+     * Returns android.db and any additional pack databases (android-*.db, i.e. android-forvo.db) in
+     * the local audio folder. A pack has the same layout as android.db, so a new source can be added
+     * by copying its pack, instead of generating android.db again. android.db is always included,
+     * unless it doesn't exist and there are other packs.
+     */
+    public static List<File> getPackFiles(Context context) {
+        File rootDir = context.getExternalFilesDir(null);
+        List<File> packFiles = new ArrayList<>();
+
+        File[] files = rootDir == null ? null : rootDir.listFiles((dir, name) ->
+                name.startsWith(PACK_PREFIX) && name.endsWith(PACK_SUFFIX));
+        if (files != null) {
+            Arrays.sort(files);
+            for (File file : files) {
+                if (file.isFile()) {
+                    packFiles.add(file);
+                }
+            }
+        }
+
+        File databaseFile = getDatabaseFile(context);
+        if (databaseFile.isFile() || packFiles.isEmpty()) {
+            packFiles.add(0, databaseFile);
+        }
+        return packFiles;
+    }
+
+    /**
+     * Opens a database file. Use EntriesDatabaseManager to get the process-wide instances instead.
+     */
+    static EntriesDatabase open(Context context, File databasePath) {
+        return Room.databaseBuilder(context.getApplicationContext(),
+                        EntriesDatabase.class, databasePath.toString())
+                // With a write-ahead log, concurrent lookups (and the reads of streamed audio) each get
+                // a connection of their own, instead of waiting for a single one
+                .setJournalMode(RoomDatabase.JournalMode.WRITE_AHEAD_LOGGING)
+                .build();
+    }
 }
@@ -0,0 +1,372 @@
+package com.kamwithk.ankiconnectandroid.routing.database;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.util.Log;
+
+import androidx.room.Room;
+import androidx.room.RoomDatabase;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+import androidx.sqlite.db.SupportSQLiteStatement;
+
+import com.kamwithk.ankiconnectandroid.routing.localaudiosource.LocalAudioSource;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Builds android.db on the device from the user_files folders, instead of generating it on a PC.
+ *
+ * The sources are scanned in parallel, while a single thread inserts the entries in large
+ * transactions. Indexes are only created after all entries are inserted, when the database is
+ * optimized by EntriesDatabaseOptimizer. The database is built
+ * into a separate file which replaces android.db once it is finished.
+ *
+ * The build can be resumed: every source that has been fully inserted is recorded in a progress
+ * file, and is skipped if the build is started again after being interrupted.
+ *
+ * android.db is only replaced if entries were found for every source that has a media directory,
+ * so that files in an unexpected layout don't silently replace a working database.
+ */
+public class EntriesDatabaseBuilder {
+    public interface ProgressListener {
+        void onProgress(int sourcesDone, int sourcesTotal, long entriesWritten);
+    }
+
+    private static final int BATCH_SIZE = 2000;
+    private static final int TRANSACTION_SIZE = 50000;
+
+    // must match the indices declared in Entry and AudioFileEntry
+    private static final String[] INDEX_NAMES = {
+            "idx_all", "idx_reading_speaker", "idx_expr_reading", "idx_speaker", "idx_reading", "idx_android"
+    };
+
+    private static final AtomicBoolean running = new AtomicBoolean(false);
+
+    private final Context context;
+    private final Collection<LocalAudioSource> sources;
+    private final boolean includeAudioData;
+
+    /**
+     * @param includeAudioData whether the audio files are also copied into the android table.
+     *                         This is not needed if the audio is read from the user_files folders.
+     */
+    public EntriesDatabaseBuilder(Context context, Collection<LocalAudioSource> sources, boolean includeAudioData) {
+        this.context = context;
+        this.sources = sources;
+        this.includeAudioData = includeAudioData;
+    }
+
+    public static boolean isRunning() {
+        return running.get();
+    }
+
+    /**
+     * Builds the database and replaces android.db with it. Only one build can run at a time.
+     */
+    public void build(ProgressListener listener) throws IOException, InterruptedException {
+        if (!running.compareAndSet(false, true)) {
+            throw new IllegalStateException("The local audio database is already being built");
+        }
+        try {
+            buildDatabase(listener);
+        } finally {
+            running.set(false);
+        }
+    }
+
+    private void buildDatabase(ProgressListener listener) throws IOException, InterruptedException {
+        File rootDir = context.getExternalFilesDir(null);
+        File buildFile = new File(rootDir, EntriesDatabase.DATABASE_NAME + ".build");
+        File progressFile = new File(rootDir, EntriesDatabase.DATABASE_NAME + ".build-progress");
+
+        // without a progress file, there is nothing to resume from
+        Set<String> completed = new HashSet<>();
+        if (progressFile.isFile() && buildFile.isFile()) {
+            completed.addAll(Files.readAllLines(progressFile.toPath(), StandardCharsets.UTF_8));
+        } else {
+            deleteDatabaseFiles(buildFile);
+            progressFile.delete();
+        }
+
+        List<LocalAudioSource> pending = new ArrayList<>();
+        for (LocalAudioSource source : sources) {
+            if (!completed.contains(source.getSourceID())) {
+                pending.add(source);
+            }
+        }
+
+        EntriesDatabase db = Room.databaseBuilder(context.getApplicationContext(),
+                        EntriesDatabase.class, buildFile.getPath())
+                .setJournalMode(RoomDatabase.JournalMode.WRITE_AHEAD_LOGGING)
+                .build();
+        try {
+            SupportSQLiteDatabase sqlite = db.getOpenHelper().getWritableDatabase();
+
+            // inserting into a table without indexes is much faster, so they are created afterwards
+            for (String index : INDEX_NAMES) {
+                sqlite.execSQL("DROP INDEX IF EXISTS `" + index + "`");
+            }
+
+            insertEntries(sqlite, rootDir, pending, progressFile, listener, sources.size() - pending.size());
+            checkEntries(sqlite, rootDir, progressFile);
+
+            // sorts the entries and creates the indexes
+            Log.i("AnkiConnectAndroid", "Optimizing the local audio database");
+            EntriesDatabaseOptimizer.optimize(sqlite, buildFile, true);
+        } finally {
+            // closing the last connection checkpoints the write-ahead log into the file, so nothing
+            // is left behind in android.db.build-wal when it is renamed
+            db.close();
+        }
+
+        // Replace the existing database. The rename replaces the file in one step, and requests that
+        // are still using the old database keep reading from it until it is switched out.
+        File databaseFile = EntriesDatabase.getDatabaseFile(context);
+        if (!buildFile.renameTo(databaseFile)) {
+            throw new IOException("Could not move " + buildFile + " to " + databaseFile);
+        }
+        deleteDatabaseFiles(buildFile);
+        progressFile.delete();
+
+        try {
+            EntriesDatabaseManager.reload(context);
+        } catch (RuntimeException e) {
+            // the new database is still picked up once the change to the file is noticed
+            Log.w("AnkiConnectAndroid", "Could not reload the local audio database", e);
+        }
+    }
+
+    /** A batch of entries scanned from a single source */
+    private static class Batch {
+        final LocalAudioSource source;
+        final List<Entry> entries;
+        final boolean last;
+        final Exception error;
+
+        Batch(LocalAudioSource source, List<Entry> entries, boolean last, Exception error) {
+            this.source = source;
+            this.entries = entries;
+            this.last = last;
+            this.error = error;
+        }
+    }
+
+    private void insertEntries(SupportSQLiteDatabase sqlite, File rootDir, List<LocalAudioSource> pending,
+                               File progressFile, ProgressListener listener, int sourcesDone)
+            throws IOException, InterruptedException {
+        int sourcesTotal = sourcesDone + pending.size();
+        listener.onProgress(sourcesDone, sourcesTotal, 0);
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        // the queue is bounded so that scanning can't get too far ahead of inserting
+        BlockingQueue<Batch> queue = new ArrayBlockingQueue<>(16);
+        int threads = Math.min(pending.size(), Runtime.getRuntime().availableProcessors());
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+        for (LocalAudioSource source : pending) {
+            // remove anything left over from an interrupted build
+            sqlite.delete("entries", "source = ?", new Object[]{source.getSourceID()});
+            sqlite.delete("android", "source = ?", new Object[]{source.getSourceID()});
+
+            File mediaDirFile = new File(rootDir, source.getMediaDir());
+            executor.execute(() -> scanSource(source, mediaDirFile, queue));
+        }
+
+        SupportSQLiteStatement insertEntry = sqlite.compileStatement(
+                "INSERT INTO entries (expression, reading, source, speaker, display, file) VALUES (?, ?, ?, ?, ?, ?)");
+        SupportSQLiteStatement insertAudioFile = sqlite.compileStatement(
+                "INSERT INTO android (file, source, data) VALUES (?, ?, ?)");
+        Map<String, Set<String>> insertedFiles = new HashMap<>();
+
+        long entriesWritten = 0;
+        int entriesInTransaction = 0;
+        int remaining = pending.size();
+
+        sqlite.beginTransaction();
+        try {
+            while (remaining > 0) {
+                Batch batch = queue.take();
+
+                for (Entry entry : batch.entries) {
+                    bindString(insertEntry, 1, entry.expression);
+                    bindString(insertEntry, 2, entry.reading);
+                    bindString(insertEntry, 3, entry.source);
+                    bindString(insertEntry, 4, entry.speaker);
+                    bindString(insertEntry, 5, entry.display);
+                    bindString(insertEntry, 6, entry.file);
+                    insertEntry.executeInsert();
+
+                    // multiple entries can share the same file, but it only has to be stored once
+                    Set<String> sourceFiles = insertedFiles.computeIfAbsent(entry.source, k -> new HashSet<>());
+                    if (includeAudioData && sourceFiles.add(entry.file)) {
+                        File file = batch.source.getMediaFile(rootDir, entry.file);
+                        if (file != null && file.isFile()) {
+                            insertAudioFile.bindString(1, entry.file);
+                            insertAudioFile.bindString(2, entry.source);
+                            insertAudioFile.bindBlob(3, readFile(file));
+                            insertAudioFile.executeInsert();
+                        }
+                    }
+                }
+                entriesWritten += batch.entries.size();
+                entriesInTransaction += batch.entries.size();
+
+                if (batch.last) {
+                    if (batch.error != null) {
+                        throw new IOException("Could not read local audio source " + batch.source.getSourceID(), batch.error);
+                    }
+
+                    // the source is only recorded as done once all of its entries are committed
+                    sqlite.setTransactionSuccessful();
+                    sqlite.endTransaction();
+                    appendProgress(progressFile, batch.source.getSourceID());
+                    insertedFiles.remove(batch.source.getSourceID());
+                    sqlite.beginTransaction();
+                    entriesInTransaction = 0;
+
+                    remaining--;
+                    sourcesDone++;
+                    listener.onProgress(sourcesDone, sourcesTotal, entriesWritten);
+                } else if (entriesInTransaction >= TRANSACTION_SIZE) {
+                    sqlite.setTransactionSuccessful();
+                    sqlite.endTransaction();
+                    sqlite.beginTransaction();
+                    entriesInTransaction = 0;
+
+                    listener.onProgress(sourcesDone, sourcesTotal, entriesWritten);
+                }
+            }
+            sqlite.setTransactionSuccessful();
+        } finally {
+            sqlite.endTransaction();
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @throws IOException if a source with a media directory, or all of the sources, have no entries
+     */
+    private void checkEntries(SupportSQLiteDatabase sqlite, File rootDir, File progressFile) throws IOException {
+        Map<String, Long> counts = new HashMap<>();
+        long total = 0;
+        try (Cursor cursor = sqlite.query("SELECT source, COUNT(*) FROM entries GROUP BY source")) {
+            while (cursor.moveToNext()) {
+                counts.put(cursor.getString(0), cursor.getLong(1));
+                total += cursor.getLong(1);
+            }
+        }
+
+        List<String> emptySources = new ArrayList<>();
+        for (LocalAudioSource source : sources) {
+            if (new File(rootDir, source.getMediaDir()).isDirectory()
+                    && counts.getOrDefault(source.getSourceID(), 0L) == 0) {
+                emptySources.add(source.getSourceID());
+            }
+        }
+        if (emptySources.isEmpty() && total > 0) {
+            return;
+        }
+
+        // the empty sources are scanned again by the next build, i.e. once their files are fixed
+        if (progressFile.isFile()) {
+            List<String> completed = new ArrayList<>(Files.readAllLines(progressFile.toPath(), StandardCharsets.UTF_8));
+            completed.removeAll(emptySources);
+            Files.write(progressFile.toPath(), completed, StandardCharsets.UTF_8);
+        }
+
+        if (emptySources.isEmpty()) {
+            throw new IOException("No local audio files were found in " + new File(rootDir, "user_files")
+                    + ", so the existing database was kept");
+        }
+        throw new IOException("No local audio files were found for " + String.join(", ", emptySources)
+                + ", so the existing database was kept. Check that their files are in the expected layout.");
+    }
+
+    private void scanSource(LocalAudioSource source, File mediaDirFile, BlockingQueue<Batch> queue) {
+        List<Entry> entries = new ArrayList<>(BATCH_SIZE);
+        Exception error = null;
+        try {
+            source.scanEntries(mediaDirFile, entry -> {
+                entries.add(entry);
+                if (entries.size() >= BATCH_SIZE) {
+                    put(queue, new Batch(source, new ArrayList<>(entries), false, null));
+                    entries.clear();
+                }
+            });
+        } catch (CancellationException e) {
+            return;
+        } catch (IOException | RuntimeException e) {
+            error = e;
+        }
+        if (Thread.currentThread().isInterrupted()) {
+            // the build was stopped, so nothing takes the batch anymore
+            return;
+        }
+        try {
+            put(queue, new Batch(source, entries, true, error));
+        } catch (CancellationException e) {
+            // stopped while waiting for space in the queue. The task must not throw, as nothing
+            // catches exceptions of tasks started with execute().
+        }
+    }
+
+    private static void put(BlockingQueue<Batch> queue, Batch batch) {
+        try {
+            queue.put(batch);
+        } catch (InterruptedException e) {
+            // the build was stopped
+            Thread.currentThread().interrupt();
+            throw new CancellationException();
+        }
+    }
+
+    private static void bindString(SupportSQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            byte[] data = new byte[(int) randomAccessFile.length()];
+            randomAccessFile.readFully(data);
+            return data;
+        }
+    }
+
+    private static void appendProgress(File progressFile, String sourceID) throws IOException {
+        try (Writer writer = new FileWriter(progressFile, true)) {
+            writer.write(sourceID + "\n");
+        }
+    }
+
+    static void deleteDatabaseFiles(File databaseFile) {
+        databaseFile.delete();
+        new File(databaseFile.getPath() + "-journal").delete();
+        new File(databaseFile.getPath() + "-wal").delete();
+        new File(databaseFile.getPath() + "-shm").delete();
+    }
+}
@@ -0,0 +1,675 @@
+package com.kamwithk.ankiconnectandroid.routing.database;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
+
+import androidx.sqlite.db.SimpleSQLiteQuery;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Owns the process-wide local audio databases: android.db and any additional packs (see
+ * EntriesDatabase.getPackFiles()). They are replaced when a file is added, removed or replaced,
+ * without restarting the server.
+ *
+ * Requests acquire a Handle, which keeps its databases open until it is closed. When a change is
+ * detected (by the inode, size and modification time of the files, or requested through
+ * /localaudio/reload/), the files are opened and prepared in the background while requests keep
+ * using the old ones. Then the current handle is switched over in one step, and the old databases
+ * are closed once the last request using them is done. A request therefore uses a single set of
+ * databases (and the filters built from them) from start to finish.
+ *
+ * A detected change is only picked up once the files have stayed the same for SETTLE_MS, so that a
+ * file which is still being copied isn't opened (or written to). The files are also checked with a
+ * read-only PRAGMA quick_check first, and the current databases are kept if they don't pass it.
+ *
+ * Each set of databases is opened through hard links of its own (i.e. android.db.g12), not through
+ * the files' names. SQLite finds the write-ahead log and the shared memory index by the path of the
+ * database, so two sets opened under the same name (i.e. the old android.db and the one that
+ * replaced it) would share android.db-wal, and the old set could read or checkpoint the pages of the
+ * new file. If the file system doesn't support hard links, the old databases are closed (after the
+ * requests using them are done) before the new ones are opened, and lookups wait in the meantime.
+ */
+public final class EntriesDatabaseManager {
+    // how often the files are checked for changes, at most
+    private static final long CHECK_INTERVAL_MS = 2000;
+    // how long changed files have to stay the same before they are opened
+    private static final long SETTLE_MS = 5000;
+    // appended to the name of a file for the hard link that it is opened through
+    private static final String GENERATION_SUFFIX = ".g";
+    private static final Pattern GENERATION_LINK = Pattern.compile(".+\\.db\\.g\\d+(-wal|-shm|-journal)?");
+
+    private static final Object lock = new Object();
+    private static final Object swapLock = new Object();
+    private static final AtomicBoolean busy = new AtomicBoolean(false);
+
+    // queries the packs of a lookup at the same time, so that a lookup can use more than one core
+    private static final ExecutorService queryExecutor =
+            Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+
+    private static volatile Handle current;
+    private static volatile long lastCheck;
+    // the state of the changed files (see describe()), and since when they have been in that state
+    private static volatile String pendingState;
+    private static volatile long pendingSince;
+    // the state of files that failed to load, which are not retried until they change again
+    private static volatile String failedState;
+    // whether the current databases are being closed before the new ones are opened, guarded by lock
+    private static boolean draining;
+
+    private static final AtomicLong generation = new AtomicLong();
+    // the hard links made by this process, any others are left over from a previous one
+    private static final Set<String> generationLinks = ConcurrentHashMap.newKeySet();
+    private static final AtomicBoolean staleLinksDeleted = new AtomicBoolean(false);
+
+    private EntriesDatabaseManager() {
+    }
+
+    /**
+     * A single database file, with its filter.
+     */
+    private static final class Pack {
+        final EntriesDatabase database;
+        final File file;
+        // the hard link that the database is opened through, or the file itself
+        final File openedFile;
+        volatile FileStamp stamp;
+        volatile EntriesBloomFilter filter;
+
+        Pack(EntriesDatabase database, File file, File openedFile) {
+            this.database = database;
+            this.file = file;
+            this.openedFile = openedFile;
+            this.stamp = FileStamp.of(file);
+        }
+
+        List<Entry> getSources(String term, String reading, List<String> sources, List<String> users,
+                               boolean filterSources) {
+            // most terms have no audio at all, which the filter can tell without querying the database
+            EntriesBloomFilter filter = this.filter;
+            if (filter != null && !filter.mightContain(term, reading)) {
+                return Collections.emptyList();
+            }
+            SimpleSQLiteQuery query = AudioSourcesQuery.create(term, reading, sources, users, filterSources,
+                    database.hasNormalizedReadings());
+            return database.entryDao().getSources(query);
+        }
+
+        /**
+         * Our own writes (i.e. optimizing the database) change the size and modification time as well,
+         * so they are taken over. A different inode means that the file was replaced in the meantime.
+         */
+        void refreshStamp() {
+            FileStamp newStamp = FileStamp.of(file);
+            if (newStamp.inode == stamp.inode) {
+                stamp = newStamp;
+            }
+        }
+    }
+
+    /**
+     * A reference to the open databases. It must be closed after use.
+     */
+    public static final class Handle implements Closeable {
+        private final List<Pack> packs;
+        // the manager holds one reference for as long as this is the current handle
+        private final AtomicInteger references = new AtomicInteger(1);
+        private final CountDownLatch closed = new CountDownLatch(1);
+
+        private Handle(List<Pack> packs) {
+            this.packs = packs;
+        }
+
+        /**
+         * @return all databases, in the order in which they should be searched for audio files
+         */
+        public List<EntriesDatabase> getDatabases() {
+            List<EntriesDatabase> databases = new ArrayList<>(packs.size());
+            for (Pack pack : packs) {
+                databases.add(pack.database);
+            }
+            return databases;
+        }
+
+        /**
+         * Finds the entries of a term in all databases. With more than one database, they are queried
+         * at the same time, and the results are merged in the same order as the query would return them.
+         *
+         * @param filterSources see AudioSourcesQuery.create()
+         */
+        public List<Entry> getSources(String term, String reading, List<String> sources, List<String> users,
+                                      boolean filterSources) {
+            if (packs.size() == 1) {
+                return packs.get(0).getSources(term, reading, sources, users, filterSources);
+            }
+
+            List<Future<List<Entry>>> results = new ArrayList<>(packs.size());
+            for (Pack pack : packs) {
+                results.add(queryExecutor.submit(() -> pack.getSources(term, reading, sources, users, filterSources)));
+            }
+
+            List<Entry> entries = new ArrayList<>();
+            try {
+                for (Future<List<Entry>> result : results) {
+                    entries.addAll(result.get());
+                }
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Could not query the local audio databases", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while querying the local audio databases", e);
+            } finally {
+                for (Future<List<Entry>> result : results) {
+                    result.cancel(false);
+                }
+            }
+
+            // each result is already sorted, and the sort is stable, so ties keep the order of the packs
+            entries.sort(AudioSourcesQuery.createComparator(sources, users));
+            return entries;
+        }
+
+        /**
+         * Identifies the version of the database files, i.e. to use within ETags.
+         */
+        public String getVersion() {
+            StringBuilder version = new StringBuilder();
+            for (Pack pack : packs) {
+                FileStamp stamp = pack.stamp;
+                version.append(pack.file.getName()).append(':').append(stamp.inode).append('-')
+                        .append(stamp.length).append('-').append(stamp.lastModified).append(';');
+            }
+            return version.toString();
+        }
+
+        /**
+         * Takes another reference, i.e. for a stream that outlives the request handler.
+         * The returned handle must be closed separately.
+         */
+        public Handle retain() {
+            if (!tryRetain()) {
+                throw new IllegalStateException("The local audio database is already closed");
+            }
+            return this;
+        }
+
+        private boolean tryRetain() {
+            while (true) {
+                int count = references.get();
+                if (count == 0) {
+                    return false;
+                }
+                if (references.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            if (references.decrementAndGet() == 0) {
+                for (Pack pack : packs) {
+                    pack.database.close();
+                    if (!pack.openedFile.equals(pack.file)) {
+                        deleteGenerationLink(pack.openedFile);
+                    }
+                }
+                closed.countDown();
+            }
+        }
+
+        private void awaitClosed() {
+            try {
+                closed.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while closing the local audio databases", e);
+            }
+        }
+
+        /**
+         * Whether any of the files would be opened under the same path as one of these databases, or
+         * is the same file (i.e. when reloading without a change), which would give it a second
+         * write-ahead log.
+         */
+        private boolean sharesFiles(List<File> files, List<File> openedFiles) {
+            for (Pack pack : packs) {
+                if (openedFiles.contains(pack.openedFile)) {
+                    return true;
+                }
+                long inode = FileStamp.of(pack.openedFile).inode;
+                for (File file : files) {
+                    if (inode != 0 && FileStamp.of(file).inode == inode) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        private boolean isUpToDate(List<File> packFiles) {
+            if (packFiles.size() != packs.size()) {
+                return false;
+            }
+            for (int i = 0; i < packs.size(); i++) {
+                Pack pack = packs.get(i);
+                if (!pack.file.equals(packFiles.get(i)) || !FileStamp.of(pack.file).equals(pack.stamp)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Returns the current databases. The handle must be closed once the request is done with it.
+     */
+    public static Handle acquire(Context context) {
+        checkForChanges(context);
+        while (true) {
+            Handle handle = current;
+            if (handle == null) {
+                synchronized (lock) {
+                    // the old databases are being closed, and the new ones are opened by the swap
+                    while (draining) {
+                        try {
+                            lock.wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new IllegalStateException("Interrupted while waiting for the local audio database", e);
+                        }
+                    }
+                    if (current == null) {
+                        List<File> files = EntriesDatabase.getPackFiles(context);
+                        current = open(context, files, linkGenerations(files));
+                    }
+                    handle = current;
+                }
+            }
+            if (handle.tryRetain()) {
+                return handle;
+            }
+            // the handle was switched out and closed in the meantime, so the new one is used instead
+        }
+    }
+
+    /**
+     * Prepares the current databases in the background (see prepare()).
+     */
+    public static void prepareInBackground(Context context) {
+        Context appContext = context.getApplicationContext();
+        if (!busy.compareAndSet(false, true)) {
+            return;
+        }
+        new Thread(() -> {
+            // the swap lock is taken first, as a swap waits for the handles of the old databases
+            synchronized (swapLock) {
+                try (Handle handle = acquire(appContext)) {
+                    checkIntegrity(EntriesDatabase.getPackFiles(appContext));
+                    prepare(appContext, handle);
+                    } catch (RuntimeException e) {
+                    Log.w("AnkiConnectAndroid", "Could not prepare the local audio database", e);
+                } finally {
+                    busy.set(false);
+                }
+            }
+        }).start();
+    }
+
+    /**
+     * Opens the databases again in the background, and switches over to them once they are prepared.
+     * @return false if a reload is already running
+     */
+    public static boolean reloadInBackground(Context context) {
+        return reloadInBackground(context, null);
+    }
+
+    /**
+     * @param state the state of the files that the reload was started for, which is not retried
+     *              if the reload fails
+     */
+    private static boolean reloadInBackground(Context context, String state) {
+        Context appContext = context.getApplicationContext();
+        if (!busy.compareAndSet(false, true)) {
+            return false;
+        }
+        new Thread(() -> {
+            try {
+                swap(appContext, true);
+            } catch (RuntimeException e) {
+                Log.w("AnkiConnectAndroid", "Could not reload the local audio database, keeping the current one", e);
+                if (state != null) {
+                    failedState = state;
+                }
+            } finally {
+                busy.set(false);
+            }
+        }).start();
+        return true;
+    }
+
+    /**
+     * Same as reloadInBackground(), but waits until the new databases are used.
+     */
+    public static void reload(Context context) {
+        swap(context.getApplicationContext(), true);
+    }
+
+    private static void checkForChanges(Context context) {
+        long now = SystemClock.elapsedRealtime();
+        if (now - lastCheck < CHECK_INTERVAL_MS) {
+            return;
+        }
+        lastCheck = now;
+
+        Handle handle = current;
+        if (handle == null || busy.get()) {
+            return;
+        }
+        List<File> packFiles = EntriesDatabase.getPackFiles(context);
+        if (handle.isUpToDate(packFiles)) {
+            pendingState = null;
+            return;
+        }
+
+        // The files might still be copied, so they are only reloaded once they stopped changing
+        String state = describe(packFiles);
+        if (state.equals(failedState)) {
+            return;
+        }
+        if (!state.equals(pendingState)) {
+            pendingState = state;
+            pendingSince = now;
+            return;
+        }
+        if (now - pendingSince < SETTLE_MS) {
+            return;
+        }
+        pendingState = null;
+        Log.i("AnkiConnectAndroid", "The local audio databases were changed, reloading them");
+        reloadInBackground(context, state);
+    }
+
+    private static String describe(List<File> files) {
+        StringBuilder state = new StringBuilder();
+        for (File file : files) {
+            FileStamp stamp = FileStamp.of(file);
+            state.append(file.getPath()).append(':').append(stamp.inode).append('-')
+                    .append(stamp.length).append('-').append(stamp.lastModified).append(';');
+        }
+        return state.toString();
+    }
+
+    /**
+     * Runs PRAGMA quick_check on each file through a separate read-only connection, so that nothing
+     * is written to a file that is incomplete (i.e. still being copied) or damaged.
+     *
+     * @throws IllegalStateException if a file doesn't pass the check
+     */
+    private static void checkIntegrity(List<File> files) {
+        for (File file : files) {
+            if (!file.isFile()) {
+                continue;
+            }
+            String result;
+            try (SQLiteDatabase db = SQLiteDatabase.openDatabase(file.getPath(), null, SQLiteDatabase.OPEN_READONLY);
+                 Cursor cursor = db.rawQuery("PRAGMA quick_check", null)) {
+                result = cursor.moveToFirst() ? cursor.getString(0) : null;
+            } catch (SQLiteException e) {
+                throw new IllegalStateException("Could not open the local audio database " + file, e);
+            }
+            if (!"ok".equals(result)) {
+                throw new IllegalStateException("The local audio database " + file +
+                        " is incomplete or damaged: " + result);
+            }
+        }
+    }
+
+    /**
+     * @param openedFiles the paths to open the files through (see linkGenerations())
+     */
+    private static Handle open(Context context, List<File> files, List<File> openedFiles) {
+        List<Pack> packs = new ArrayList<>();
+        for (int i = 0; i < files.size(); i++) {
+            packs.add(new Pack(EntriesDatabase.open(context, openedFiles.get(i)), files.get(i), openedFiles.get(i)));
+        }
+        return new Handle(packs);
+    }
+
+    private static Handle openAndPrepare(Context context, List<File> files, List<File> openedFiles) {
+        Handle handle = open(context, files, openedFiles);
+        try {
+            prepare(context, handle);
+        } catch (RuntimeException e) {
+            handle.close();
+            throw e;
+        }
+        return handle;
+    }
+
+    /**
+     * Makes a new hard link for each file, so that its write-ahead log isn't shared with databases
+     * that were opened before (see the class comment).
+     *
+     * @return the link of each file, or the file itself if it doesn't exist or can't be linked
+     */
+    private static List<File> linkGenerations(List<File> files) {
+        deleteStaleGenerationLinks(files);
+
+        List<File> openedFiles = new ArrayList<>(files.size());
+        for (File file : files) {
+            File link = new File(file.getPath() + GENERATION_SUFFIX + generation.incrementAndGet());
+            if (file.isFile()) {
+                EntriesDatabaseBuilder.deleteDatabaseFiles(link);
+                try {
+                    Os.link(file.getPath(), link.getPath());
+                    generationLinks.add(link.getPath());
+                    openedFiles.add(link);
+                    continue;
+                } catch (ErrnoException e) {
+                    Log.w("AnkiConnectAndroid", "Could not link " + file + ", opening it under its own name", e);
+                }
+            }
+            openedFiles.add(file);
+        }
+        return openedFiles;
+    }
+
+    private static void deleteGenerationLinks(List<File> files, List<File> openedFiles) {
+        for (int i = 0; i < files.size(); i++) {
+            if (!openedFiles.get(i).equals(files.get(i))) {
+                deleteGenerationLink(openedFiles.get(i));
+            }
+        }
+    }
+
+    private static void deleteGenerationLink(File link) {
+        EntriesDatabaseBuilder.deleteDatabaseFiles(link);
+        generationLinks.remove(link.getPath());
+    }
+
+    /**
+     * Deletes the links that a previous process didn't get to delete. A write-ahead log that was left
+     * behind with one is checkpointed into the file first, as it may hold committed changes.
+     */
+    private static void deleteStaleGenerationLinks(List<File> files) {
+        if (files.isEmpty() || !staleLinksDeleted.compareAndSet(false, true)) {
+            return;
+        }
+        Set<File> dirs = new HashSet<>();
+        for (File file : files) {
+            dirs.add(file.getParentFile());
+        }
+        for (File dir : dirs) {
+            File[] links = dir == null ? null : dir.listFiles((d, name) -> GENERATION_LINK.matcher(name).matches());
+            if (links == null) {
+                continue;
+            }
+            for (File link : links) {
+                String path = link.getPath().replaceFirst("-(wal|shm|journal)$", "");
+                if (generationLinks.contains(path)) {
+                    continue;
+                }
+                File linkFile = new File(path);
+                if (linkFile.isFile() && new File(path + "-wal").isFile()) {
+                    try {
+                        SQLiteDatabase.openDatabase(path, null, SQLiteDatabase.OPEN_READWRITE).close();
+                    } catch (SQLiteException e) {
+                        Log.w("AnkiConnectAndroid", "Could not checkpoint " + linkFile, e);
+                    }
+                }
+                EntriesDatabaseBuilder.deleteDatabaseFiles(linkFile);
+            }
+        }
+    }
+
+    /**
+     * Converts newly copied databases into a faster layout, and loads the filters that let lookups
+     * skip terms without any audio.
+     */
+    private static void prepare(Context context, Handle handle) {
+        for (Pack pack : handle.packs) {
+            if (!pack.file.isFile()) {
+                continue;
+            }
+            EntriesDatabaseOptimizer.optimizeIfNeeded(pack.database, pack.file);
+            pack.filter = EntriesBloomFilter.load(context, pack.database, pack.file);
+            // only so that the file is complete on its own, i.e. if it is copied somewhere else
+            if (!pack.database.checkpoint()) {
+                Log.w("AnkiConnectAndroid", "Could not fully checkpoint " + pack.file);
+            }
+            pack.refreshStamp();
+        }
+    }
+
+    private static void swap(Context context, boolean force) {
+        synchronized (swapLock) {
+            Handle old = current;
+            List<File> files = EntriesDatabase.getPackFiles(context);
+            if (!force && old != null && old.isUpToDate(files)) {
+                return;
+            }
+
+            long start = System.currentTimeMillis();
+            List<File> openedFiles = linkGenerations(files);
+
+            if (old != null && old.sharesFiles(files, openedFiles)) {
+                swapAfterClosing(context, files, openedFiles);
+            } else {
+                // the current databases are kept if the new files can't be used
+                try {
+                    checkIntegrity(files);
+                } catch (RuntimeException e) {
+                    deleteGenerationLinks(files, openedFiles);
+                    throw e;
+                }
+                Handle handle = openAndPrepare(context, files, openedFiles);
+                synchronized (lock) {
+                    old = current;
+                    current = handle;
+                }
+                if (old != null) {
+                    // the databases are closed once all requests using them are done
+                    old.close();
+                }
+            }
+            Log.i("AnkiConnectAndroid", "Switched to " + files.size() + " local audio database(s) in " +
+                    (System.currentTimeMillis() - start) + "ms");
+        }
+    }
+
+    /**
+     * Closes the current databases before the new ones are opened under the same path, so that they
+     * are never open at the same time. Lookups wait until the new databases are prepared.
+     *
+     * The files can only be checked once the current databases are closed, as the check would share
+     * their write-ahead log as well. If they don't pass it, the next lookup opens them again.
+     */
+    private static void swapAfterClosing(Context context, List<File> files, List<File> openedFiles) {
+        Handle old;
+        synchronized (lock) {
+            draining = true;
+            old = current;
+            current = null;
+        }
+        try {
+            if (old != null) {
+                old.close();
+                old.awaitClosed();
+            }
+            try {
+                checkIntegrity(files);
+            } catch (RuntimeException e) {
+                deleteGenerationLinks(files, openedFiles);
+                throw e;
+            }
+            Handle handle = openAndPrepare(context, files, openedFiles);
+            synchronized (lock) {
+                current = handle;
+            }
+        } finally {
+            synchronized (lock) {
+                draining = false;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    private static class FileStamp {
+        final long inode;
+        final long length;
+        final long lastModified;
+
+        FileStamp(long inode, long length, long lastModified) {
+            this.inode = inode;
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+
+        static FileStamp of(File file) {
+            long inode = 0;
+            try {
+                inode = Os.stat(file.getPath()).st_ino;
+            } catch (ErrnoException ignored) {
+                // i.e. the file doesn't exist (yet)
+            }
+            return new FileStamp(inode, file.length(), file.lastModified());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof FileStamp)) {
+                return false;
+            }
+            FileStamp other = (FileStamp) o;
+            return inode == other.inode && length == other.length && lastModified == other.lastModified;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(inode) * 31 + Long.hashCode(lastModified);
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package com.kamwithk.ankiconnectandroid.routing.database;
+
+import android.database.Cursor;
+import android.database.SQLException;
+import android.util.Log;
+
+import androidx.sqlite.db.SimpleSQLiteQuery;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+import androidx.sqlite.db.SupportSQLiteStatement;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Rewrites the entries table of an imported (or freshly built) database into a layout that suits
+ * the single query made by the local audio lookup (see AudioSourcesQuery):
+ * - Rows are sorted by (expression, reading, source, speaker), so that all entries of a term are
+ *   stored next to each other.
+ * - One index on (expression, reading, source, speaker) replaces the five overlapping indexes that
+ *   the desktop generated database contains.
+ * - The audio data is kept in the separate android table, so the entries table stays small.
+ * - A normalized_reading column holds the reading normalized by ReadingNormalizer, with an index on
+ *   (expression, normalized_reading), so that kana variants of a reading can be found as well.
+ *
+ * The database schema stays compatible with EntriesDatabase, as Room only checks the schema
+ * identity hash when the database is opened, and ignores columns that Entry doesn't have.
+ */
+public class EntriesDatabaseOptimizer {
+    public static final String LOOKUP_INDEX = "idx_lookup";
+    public static final String NORMALIZED_READING_INDEX = "idx_normalized_reading";
+
+    // the normalized readings are filled in batches of this many rows
+    private static final int NORMALIZE_BATCH_SIZE = 10000;
+
+    // must match the table generated by Room for Entry, plus the normalized_reading column
+    private static final String CREATE_SORTED_ENTRIES = "CREATE TABLE `entries_sorted` (" +
+            "`id` INTEGER NOT NULL, `expression` TEXT NOT NULL, `reading` TEXT, `source` TEXT NOT NULL, " +
+            "`speaker` TEXT, `display` TEXT, `file` TEXT NOT NULL, `normalized_reading` TEXT, PRIMARY KEY(`id`))";
+
+    private EntriesDatabaseOptimizer() {
+    }
+
+    public static boolean isOptimized(SupportSQLiteDatabase db) {
+        return hasIndex(db, LOOKUP_INDEX) && hasIndex(db, NORMALIZED_READING_INDEX);
+    }
+
+    private static boolean hasIndex(SupportSQLiteDatabase db, String name) {
+        try (Cursor cursor = db.query("SELECT 1 FROM sqlite_master WHERE type = 'index' AND name = ?",
+                new Object[]{name})) {
+            return cursor.moveToFirst();
+        }
+    }
+
+    /**
+     * Whether the entries table has the normalized_reading column, which is only added when the
+     * database is optimized.
+     */
+    public static boolean hasNormalizedReadings(SupportSQLiteDatabase db) {
+        try (Cursor cursor = db.query("PRAGMA table_info(`entries`)")) {
+            int nameIndex = cursor.getColumnIndexOrThrow("name");
+            while (cursor.moveToNext()) {
+                if (cursor.getString(nameIndex).equals("normalized_reading")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean hasAudioData(SupportSQLiteDatabase db) {
+        try (Cursor cursor = db.query("SELECT 1 FROM android LIMIT 1")) {
+            return cursor.moveToFirst();
+        }
+    }
+
+    /**
+     * Optimizes android.db if it has not been optimized yet, i.e. after it was copied over from the
+     * desktop. This can take a while, so it should not be called on the main thread.
+     */
+    public static void optimizeIfNeeded(EntriesDatabase database, File databaseFile) {
+        if (!databaseFile.isFile()) {
+            return;
+        }
+
+        SupportSQLiteDatabase db = database.getOpenHelper().getWritableDatabase();
+        if (!isOptimized(db)) {
+            // rewriting several gigabytes of audio data would block lookups for a long time
+            optimize(db, databaseFile, !hasAudioData(db));
+            database.onLayoutChanged();
+        }
+    }
+
+    /**
+     * Rewrites the entries table. This happens within a single transaction, so lookups running at the
+     * same time either see the old or the new table.
+     *
+     * @param databaseFile the file of the database, used to check whether there is enough space to vacuum it
+     * @param vacuum whether to VACUUM the database afterwards, to shrink the file
+     */
+    public static void optimize(SupportSQLiteDatabase db, File databaseFile, boolean vacuum) {
+        long start = System.currentTimeMillis();
+
+        db.beginTransaction();
+        try {
+            db.execSQL("DROP TABLE IF EXISTS `entries_sorted`");
+            db.execSQL(CREATE_SORTED_ENTRIES);
+            db.execSQL("INSERT INTO `entries_sorted` (expression, reading, source, speaker, display, file) " +
+                    "SELECT expression, reading, source, speaker, display, file FROM `entries` " +
+                    "ORDER BY expression, reading, source, speaker");
+            fillNormalizedReadings(db);
+
+            // dropping the table also drops all of its indexes
+            db.execSQL("DROP TABLE `entries`");
+            db.execSQL("ALTER TABLE `entries_sorted` RENAME TO `entries`");
+            db.execSQL("CREATE INDEX `" + LOOKUP_INDEX + "` ON `entries` (`expression`, `reading`, `source`, `speaker`)");
+            db.execSQL("CREATE INDEX `" + NORMALIZED_READING_INDEX + "` ON `entries` (`expression`, `normalized_reading`)");
+            db.execSQL("CREATE INDEX IF NOT EXISTS `idx_android` ON `android` (`file`, `source`)");
+
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        db.execSQL("ANALYZE");
+
+        // VACUUM rewrites the whole file (including the audio data), which needs as much free space
+        if (vacuum && databaseFile.getUsableSpace() > databaseFile.length()) {
+            try {
+                db.execSQL("VACUUM");
+            } catch (SQLException e) {
+                // i.e. if another connection is reading at the same time
+                Log.w("AnkiConnectAndroid", "Could not vacuum the local audio database", e);
+            }
+        }
+
+        if (!usesLookupIndex(db)) {
+            Log.w("AnkiConnectAndroid", "The local audio lookup does not use an index after optimizing");
+        }
+        Log.i("AnkiConnectAndroid", "Optimized local audio database in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     * SQLite can't call ReadingNormalizer, so the normalized readings are filled in from here. The rows
+     * are read in batches by id, which (unlike a single large cursor) doesn't re-run the query whenever
+     * the cursor window has to be refilled.
+     */
+    private static void fillNormalizedReadings(SupportSQLiteDatabase db) {
+        SupportSQLiteStatement update = db.compileStatement(
+                "UPDATE `entries_sorted` SET normalized_reading = ? WHERE id = ?");
+        long lastId = Long.MIN_VALUE;
+        int rows;
+        do {
+            rows = 0;
+            try (Cursor cursor = db.query("SELECT id, reading FROM `entries_sorted` " +
+                    "WHERE id > ? AND reading IS NOT NULL ORDER BY id LIMIT " + NORMALIZE_BATCH_SIZE,
+                    new Object[]{lastId})) {
+                while (cursor.moveToNext()) {
+                    lastId = cursor.getLong(0);
+                    update.bindString(1, ReadingNormalizer.normalize(cursor.getString(1)));
+                    update.bindLong(2, lastId);
+                    update.executeUpdateDelete();
+                    rows++;
+                }
+            }
+        } while (rows == NORMALIZE_BATCH_SIZE);
+    }
+
+    /**
+     * Checks with EXPLAIN QUERY PLAN that the lookup query searches an index,
+     * instead of scanning the whole entries table.
+     */
+    public static boolean usesLookupIndex(SupportSQLiteDatabase db) {
+        List<String> sources = List.of("nhk16", "forvo");
+        List<String> users = List.of("speaker");
+
+        boolean normalizedReadings = hasNormalizedReadings(db);
+
+        List<SimpleSQLiteQuery> queries = new ArrayList<>();
+        queries.add(AudioSourcesQuery.createQueryPlan("", "", sources, new ArrayList<>(), false, normalizedReadings));
+        queries.add(AudioSourcesQuery.createQueryPlan("", "", sources, users, true, normalizedReadings));
+
+        for (SimpleSQLiteQuery query : queries) {
+            try (Cursor cursor = db.query(query)) {
+                int detailIndex = cursor.getColumnIndexOrThrow("detail");
+                while (cursor.moveToNext()) {
+                    String detail = cursor.getString(detailIndex);
+                    // i.e. "SCAN entries" or "SCAN TABLE entries" on older versions of SQLite,
+                    // for the lookup itself or the check for an exact reading match
+                    if (detail.startsWith("SCAN ")) {
+                        Log.w("AnkiConnectAndroid", "Local audio lookup plan: " + detail);
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+}
@@ -7,7 +7,10 @@ import androidx.room.Index;
 import androidx.room.PrimaryKey;
 
 @Entity(tableName = "entries",
-    indices= { // TODO remove some indices?
+    // These are the indices of the desktop generated database. They are replaced by a single lookup
+    // index when the database is optimized (see EntriesDatabaseOptimizer). They can't be changed here
+    // without changing the schema identity hash, which would make existing databases fail to open.
+    indices= {
         @Index(name="idx_all", value = {"expression", "reading", "source"}),
 
         @Index(name="idx_reading_speaker", value = {"expression", "reading", "speaker"}),
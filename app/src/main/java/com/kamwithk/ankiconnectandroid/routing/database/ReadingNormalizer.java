@@ -0,0 +1,55 @@
+package com.kamwithk.ankiconnectandroid.routing.database;
+
+/**
+ * Normalizes kana readings so that spelling variants of the same reading compare equal:
+ * - katakana is converted to hiragana (i.e. コーヒー -> こーひー)
+ * - the long vowel mark is replaced with the vowel of the kana before it (i.e. こーひー -> こおひい)
+ */
+public final class ReadingNormalizer {
+    private static final char KATAKANA_START = 'ァ';
+    private static final char KATAKANA_END = 'ヶ';
+    private static final int KATAKANA_TO_HIRAGANA = 0x60;
+    private static final char LONG_VOWEL_MARK = 'ー';
+
+    private static final String[] VOWEL_ROWS = {
+            "あぁかがさざただなはばぱまやゃらわゎ",
+            "いぃきぎしじちぢにひびぴみりゐ",
+            "うぅくぐすずつづぬふぶぷむゆゅるゔ",
+            "えぇけげせぜてでねへべぺめれゑ",
+            "おぉこごそぞとどのほぼぽもよょろを",
+    };
+    private static final char[] VOWELS = {'あ', 'い', 'う', 'え', 'お'};
+
+    private ReadingNormalizer() {
+    }
+
+    public static String normalize(String reading) {
+        if (reading == null) {
+            return null;
+        }
+
+        StringBuilder normalized = new StringBuilder(reading.length());
+        for (int i = 0; i < reading.length(); i++) {
+            char c = reading.charAt(i);
+            if (c >= KATAKANA_START && c <= KATAKANA_END) {
+                c -= KATAKANA_TO_HIRAGANA;
+            } else if (c == LONG_VOWEL_MARK && normalized.length() > 0) {
+                char vowel = getVowel(normalized.charAt(normalized.length() - 1));
+                if (vowel != 0) {
+                    c = vowel;
+                }
+            }
+            normalized.append(c);
+        }
+        return normalized.toString();
+    }
+
+    private static char getVowel(char kana) {
+        for (int i = 0; i < VOWEL_ROWS.length; i++) {
+            if (VOWEL_ROWS[i].indexOf(kana) >= 0) {
+                return VOWELS[i];
+            }
+        }
+        return 0;
+    }
+}
@@ -2,6 +2,10 @@ package com.kamwithk.ankiconnectandroid.routing.localaudiosource;
 
 import com.kamwithk.ankiconnectandroid.routing.database.Entry;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.function.Consumer;
+
 public class ForvoAudioSource extends LocalAudioSource {
     public ForvoAudioSource() {
         super("forvo", "user_files/forvo_files");
@@ -11,4 +15,18 @@ public class ForvoAudioSource extends LocalAudioSource {
     public String getSourceName(Entry entry)  {
         return "Forvo (" + entry.speaker + ")";
     }
+
+    @Override
+    public void scanEntries(File mediaDirFile, Consumer<Entry> consumer) throws IOException {
+        // files are stored as "SPEAKER/EXPRESSION.mp3"
+        walkAudioFiles(mediaDirFile, "", (file, relativePath) -> {
+            int separator = relativePath.indexOf('/');
+            if (separator < 0) {
+                return;
+            }
+            String speaker = relativePath.substring(0, separator);
+            String expression = stripExtension(file.getName());
+            consumer.accept(createEntry(expression, null, speaker, null, relativePath));
+        });
+    }
 }
@@ -2,6 +2,10 @@ package com.kamwithk.ankiconnectandroid.routing.localaudiosource;
 
 import com.kamwithk.ankiconnectandroid.routing.database.Entry;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.function.Consumer;
+
 public class JPodAltAudioSource extends LocalAudioSource {
     public JPodAltAudioSource() {
         super("jpod_alternate", "user_files/jpod_alternate_files");
@@ -11,4 +15,15 @@ public class JPodAltAudioSource extends LocalAudioSource {
     public String getSourceName(Entry entry) {
         return "JPod101 Alt";
     }
+
+    @Override
+    public void scanEntries(File mediaDirFile, Consumer<Entry> consumer) throws IOException {
+        // files are named "READING - EXPRESSION.mp3"
+        walkAudioFiles(mediaDirFile, "", (file, relativePath) -> {
+            String[] parts = stripExtension(file.getName()).split(" - ", 2);
+            String reading = parts[0];
+            String expression = parts.length == 2 ? parts[1] : parts[0];
+            consumer.accept(createEntry(expression, reading, null, null, relativePath));
+        });
+    }
 }
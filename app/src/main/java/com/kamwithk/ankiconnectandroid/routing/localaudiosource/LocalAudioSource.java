@@ -2,10 +2,27 @@ package com.kamwithk.ankiconnectandroid.routing.localaudiosource;
 
 import android.net.Uri;
 
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import com.kamwithk.ankiconnectandroid.Service;
 import com.kamwithk.ankiconnectandroid.routing.database.Entry;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
 public class LocalAudioSource {
+    private static final List<String> AUDIO_EXTENSIONS = List.of(
+            ".mp3", ".aac", ".m4a", ".ogg", ".oga", ".opus", ".flac", ".wav"
+    );
+
     private final String sourceID;
     private final String mediaDir;
 
@@ -18,10 +35,32 @@ public class LocalAudioSource {
         return sourceID;
     }
 
+    public String getSourceID() {
+        return sourceID;
+    }
+
     public String getMediaDir() {
         return mediaDir;
     }
 
+    /**
+     * Resolves a file of this source within its media directory.
+     * @param rootDir the directory that contains the user_files folder
+     * @return the file, or null if the path points outside of the media directory
+     */
+    public File getMediaFile(File rootDir, String filePath) {
+        try {
+            File mediaDirFile = new File(rootDir, mediaDir).getCanonicalFile();
+            File file = new File(mediaDirFile, filePath).getCanonicalFile();
+            if (!file.getPath().startsWith(mediaDirFile.getPath() + File.separator)) {
+                return null;
+            }
+            return file;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
     public String constructFileURL(String filePath) {
         Uri.Builder builder = new Uri.Builder();
         String NETLOC = "localhost:" + Service.PORT;
@@ -34,4 +73,121 @@ public class LocalAudioSource {
         String uri = builder.build().toString();
         return uri;
     }
+
+    /**
+     * Finds all audio files of this source, and passes an entry for each of them to the consumer.
+     * This is used to build the database on the device. The file layouts are based off of the
+     * original plugin: https://github.com/themoeway/local-audio-yomichan/tree/master/plugin/source
+     *
+     * @param mediaDirFile the media directory of this source
+     */
+    public void scanEntries(File mediaDirFile, Consumer<Entry> consumer) throws IOException {
+        // sources without a known layout have no entries
+    }
+
+    protected Entry createEntry(String expression, String reading, String speaker, String display, String file) {
+        Entry entry = new Entry();
+        entry.expression = expression;
+        entry.reading = reading;
+        entry.source = sourceID;
+        entry.speaker = speaker;
+        entry.display = display;
+        entry.file = file;
+        return entry;
+    }
+
+    protected static boolean isAudioFile(String name) {
+        String lowerName = name.toLowerCase();
+        for (String extension : AUDIO_EXTENSIONS) {
+            if (lowerName.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    protected static String stripExtension(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+
+    protected interface AudioFileVisitor {
+        void visit(File file, String relativePath) throws IOException;
+    }
+
+    /**
+     * Visits every audio file under the directory. The relative path uses "/" as the separator,
+     * as it is used within the file URLs.
+     */
+    protected static void walkAudioFiles(File dir, String relativeDir, AudioFileVisitor visitor) throws IOException {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            String relativePath = relativeDir.isEmpty() ? child.getName() : relativeDir + "/" + child.getName();
+            if (child.isDirectory()) {
+                walkAudioFiles(child, relativePath, visitor);
+            } else if (isAudioFile(child.getName())) {
+                visitor.visit(child, relativePath);
+            }
+        }
+    }
+
+    /**
+     * Reads an index.json in the Yomichan audio collection format:
+     * <pre>
+     * {
+     *   "meta": { "media_dir": "media" },
+     *   "headwords": { "EXPRESSION": ["FILE", ...] },
+     *   "files": { "FILE": { "kana_reading": "...", "pitch_pattern": "...", "pitch_number": "..." } }
+     * }
+     * </pre>
+     */
+    protected void scanIndexJson(File mediaDirFile, Consumer<Entry> consumer) throws IOException {
+        File indexFile = new File(mediaDirFile, "index.json");
+        if (!indexFile.isFile()) {
+            return;
+        }
+
+        JsonObject index;
+        try (Reader reader = new InputStreamReader(new FileInputStream(indexFile), StandardCharsets.UTF_8)) {
+            index = JsonParser.parseReader(reader).getAsJsonObject();
+        } catch (RuntimeException e) {
+            throw new IOException("Could not parse " + indexFile, e);
+        }
+
+        String fileDir = "";
+        JsonObject meta = index.getAsJsonObject("meta");
+        if (meta != null && meta.has("media_dir")) {
+            fileDir = meta.get("media_dir").getAsString() + "/";
+        }
+
+        JsonObject files = index.getAsJsonObject("files");
+        JsonObject headwords = index.getAsJsonObject("headwords");
+        if (files == null || headwords == null) {
+            return;
+        }
+
+        for (Map.Entry<String, JsonElement> headword : headwords.entrySet()) {
+            for (JsonElement fileElement : headword.getValue().getAsJsonArray()) {
+                String file = fileElement.getAsString();
+                JsonObject fileInfo = files.getAsJsonObject(file);
+
+                String reading = getString(fileInfo, "kana_reading");
+                String display = getString(fileInfo, "pitch_pattern");
+                if (display == null) {
+                    display = reading;
+                }
+                consumer.accept(createEntry(headword.getKey(), reading, null, display, fileDir + file));
+            }
+        }
+    }
+
+    protected static String getString(JsonObject object, String key) {
+        if (object == null || !object.has(key) || object.get(key).isJsonNull()) {
+            return null;
+        }
+        return object.get(key).getAsString();
+    }
 }
@@ -1,8 +1,25 @@
 package com.kamwithk.ankiconnectandroid.routing.localaudiosource;
 
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import com.kamwithk.ankiconnectandroid.routing.database.Entry;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.function.Consumer;
+
 public class NHK16AudioSource extends LocalAudioSource {
+    private static final String AUDIO_DIR = "audio";
+
     public NHK16AudioSource() {
         super("nhk16", "user_files/nhk16_files");
     }
@@ -11,4 +28,111 @@ public class NHK16AudioSource extends LocalAudioSource {
     public String getSourceName(Entry entry) {
         return "NHK16 " + entry.display;
     }
+
+    /**
+     * Reads the entries.json that comes with the NHK16 files (an index.json is used if there is
+     * none):
+     * <pre>
+     * [
+     *   {
+     *     "kana": "...",
+     *     "kanji": ["...", ...],
+     *     "accents": [{ "soundFile": "FILE", "accent": [{ "pitchAccent": 0 }] }, ...],
+     *     "subentries": [{ "head": "...", "accents": [...] }, ...]
+     *   },
+     *   ...
+     * ]
+     * </pre>
+     * The audio files are in the audio folder.
+     */
+    @Override
+    public void scanEntries(File mediaDirFile, Consumer<Entry> consumer) throws IOException {
+        File entriesFile = new File(mediaDirFile, "entries.json");
+        if (!entriesFile.isFile()) {
+            scanIndexJson(mediaDirFile, consumer);
+            return;
+        }
+
+        JsonArray entries;
+        try (Reader reader = new InputStreamReader(new FileInputStream(entriesFile), StandardCharsets.UTF_8)) {
+            entries = JsonParser.parseReader(reader).getAsJsonArray();
+        } catch (RuntimeException e) {
+            throw new IOException("Could not parse " + entriesFile, e);
+        }
+
+        String fileDir = new File(mediaDirFile, AUDIO_DIR).isDirectory() ? AUDIO_DIR + "/" : "";
+        try {
+            for (JsonElement element : entries) {
+                JsonObject entry = element.getAsJsonObject();
+                String kana = getString(entry, "kana");
+
+                List<String> expressions = new ArrayList<>();
+                if (entry.has("kanji") && entry.get("kanji").isJsonArray()) {
+                    for (JsonElement kanji : entry.getAsJsonArray("kanji")) {
+                        expressions.add(kanji.getAsString());
+                    }
+                }
+                // words without kanji are looked up by their kana
+                if (expressions.isEmpty() && kana != null) {
+                    expressions.add(kana);
+                }
+                scanAccents(entry, expressions, kana, fileDir, consumer);
+
+                // i.e. compounds of the word, which have their own audio
+                if (entry.has("subentries") && entry.get("subentries").isJsonArray()) {
+                    for (JsonElement subentryElement : entry.getAsJsonArray("subentries")) {
+                        JsonObject subentry = subentryElement.getAsJsonObject();
+                        String head = getString(subentry, "head");
+                        String subentryKana = getString(subentry, "kana");
+                        if (head != null) {
+                            scanAccents(subentry, List.of(head), subentryKana != null ? subentryKana : head,
+                                    fileDir, consumer);
+                        }
+                    }
+                }
+            }
+        } catch (CancellationException e) {
+            // thrown by the consumer when the build is stopped, which isn't a problem with the file
+            throw e;
+        } catch (IllegalStateException | ClassCastException e) {
+            throw new IOException("Could not read " + entriesFile, e);
+        }
+    }
+
+    private void scanAccents(JsonObject entry, List<String> expressions, String kana, String fileDir,
+                             Consumer<Entry> consumer) {
+        if (!entry.has("accents") || !entry.get("accents").isJsonArray()) {
+            return;
+        }
+        for (JsonElement accentElement : entry.getAsJsonArray("accents")) {
+            JsonObject accent = accentElement.getAsJsonObject();
+            String soundFile = getString(accent, "soundFile");
+            if (soundFile == null) {
+                continue;
+            }
+
+            String display = kana;
+            String pitchAccent = getPitchAccent(accent);
+            if (kana != null && pitchAccent != null) {
+                display = kana + " [" + pitchAccent + "]";
+            }
+            for (String expression : expressions) {
+                consumer.accept(createEntry(expression, kana, null, display, fileDir + soundFile));
+            }
+        }
+    }
+
+    private static String getPitchAccent(JsonObject accent) {
+        if (!accent.has("accent") || !accent.get("accent").isJsonArray()) {
+            return null;
+        }
+        List<String> pitchAccents = new ArrayList<>();
+        for (JsonElement part : accent.getAsJsonArray("accent")) {
+            String pitchAccent = getString(part.getAsJsonObject(), "pitchAccent");
+            if (pitchAccent != null) {
+                pitchAccents.add(pitchAccent);
+            }
+        }
+        return pitchAccents.isEmpty() ? null : String.join("-", pitchAccents);
+    }
 }
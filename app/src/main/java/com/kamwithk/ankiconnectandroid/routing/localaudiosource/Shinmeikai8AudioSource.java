@@ -2,6 +2,10 @@ package com.kamwithk.ankiconnectandroid.routing.localaudiosource;
 
 import com.kamwithk.ankiconnectandroid.routing.database.Entry;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.function.Consumer;
+
 public class Shinmeikai8AudioSource extends LocalAudioSource {
     public Shinmeikai8AudioSource() {
         super("shinmeikai8", "user_files/shinmeikai8_files");
@@ -11,4 +15,9 @@ public class Shinmeikai8AudioSource extends LocalAudioSource {
     public String getSourceName(Entry entry) {
         return "SMK8 " + entry.display;
     }
+
+    @Override
+    public void scanEntries(File mediaDirFile, Consumer<Entry> consumer) throws IOException {
+        scanIndexJson(mediaDirFile, consumer);
+    }
 }
@@ -0,0 +1,111 @@
+package com.kamwithk.ankiconnectandroid.ankidroid_api;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MediaPathsTest {
+    private static final List<MediaPaths.ContentPrefix> PREFIXES = List.of(
+            MediaPaths.ContentPrefix.parse("content://com.example.provider/media/"),
+            MediaPaths.ContentPrefix.parse("content://com.example.other/files"));
+
+    private static boolean isAllowed(String authority, String encodedPath) {
+        // the decoded segments, as Uri.getPathSegments() returns them
+        List<String> segments = new ArrayList<>();
+        for (String segment : encodedPath.split("/")) {
+            if (!segment.isEmpty()) {
+                segments.add(segment.replace("%2F", "/").replace("%2f", "/"));
+            }
+        }
+        return MediaPaths.isAllowedUri(PREFIXES, authority, encodedPath, segments);
+    }
+
+    @Test
+    public void allowsUrisBelowAnEntry() {
+        assertTrue(isAllowed("com.example.provider", "/media/a.png"));
+        assertTrue(isAllowed("com.example.provider", "/media/sub/a.png"));
+        // entries without a trailing slash are directories as well
+        assertTrue(isAllowed("com.example.other", "/files/a.png"));
+    }
+
+    @Test
+    public void rejectsOtherAuthorities() {
+        assertFalse(isAllowed("com.example.provider.evil", "/media/a.png"));
+        assertFalse(isAllowed("com.example", "/media/a.png"));
+        assertFalse(isAllowed(null, "/media/a.png"));
+    }
+
+    @Test
+    public void rejectsPathPrefixesThatArentDirectories() {
+        assertFalse(isAllowed("com.example.provider", "/media2/a.png"));
+        assertFalse(isAllowed("com.example.other", "/files.png"));
+        // the directory itself
+        assertFalse(isAllowed("com.example.provider", "/media"));
+        assertFalse(isAllowed("com.example.provider", "/"));
+    }
+
+    @Test
+    public void rejectsTraversal() {
+        assertFalse(isAllowed("com.example.provider", "/media/../secret"));
+        assertFalse(isAllowed("com.example.provider", "/media/./a.png"));
+        assertFalse(isAllowed("com.example.provider", "/media/..%2F..%2Fsecret"));
+        assertFalse(isAllowed("com.example.provider", "/media/%2e%2e%2fsecret"));
+        assertFalse(isAllowed("com.example.provider", "/media/..%5Csecret"));
+    }
+
+    @Test
+    public void ignoresInvalidEntries() {
+        assertNull(MediaPaths.ContentPrefix.parse("content:///media/"));
+        assertNull(MediaPaths.ContentPrefix.parse("content://com.example.provider/media/../"));
+    }
+
+    @Test
+    public void allowsFilesWithinDirectories() throws IOException {
+        Path root = Files.createTempDirectory("media-paths");
+        try {
+            File allowed = Files.createDirectory(root.resolve("allowed")).toFile();
+            File other = Files.createDirectory(root.resolve("allowed2")).toFile();
+            List<String> directories = List.of(allowed.getCanonicalPath());
+
+            assertTrue(MediaPaths.isInDirectory(directories, new File(allowed, "a.png").getCanonicalPath()));
+            assertTrue(MediaPaths.isInDirectory(directories, new File(allowed, "sub/a.png").getCanonicalPath()));
+            assertFalse(MediaPaths.isInDirectory(directories, allowed.getCanonicalPath()));
+            // a sibling whose name starts with the allowed directory's name
+            assertFalse(MediaPaths.isInDirectory(directories, new File(other, "a.png").getCanonicalPath()));
+            assertFalse(MediaPaths.isInDirectory(directories, new File(allowed, "../allowed2/a.png").getCanonicalPath()));
+        } finally {
+            deleteRecursively(root.toFile());
+        }
+    }
+
+    @Test
+    public void rejectsSymbolicLinksOutOfDirectories() throws IOException {
+        Path root = Files.createTempDirectory("media-paths");
+        try {
+            Path allowed = Files.createDirectory(root.resolve("allowed"));
+            Path secret = Files.createFile(root.resolve("secret.png"));
+            Path link = Files.createSymbolicLink(allowed.resolve("link.png"), secret);
+            List<String> directories = List.of(allowed.toFile().getCanonicalPath());
+
+            assertFalse(MediaPaths.isInDirectory(directories, link.toFile().getCanonicalPath()));
+        } finally {
+            deleteRecursively(root.toFile());
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            Arrays.stream(children).forEach(MediaPathsTest::deleteRecursively);
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,56 @@
+package com.kamwithk.ankiconnectandroid.request_parsers;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ParserTest {
+    private static JsonObject request(String params) {
+        return JsonParser.parseString("{\"action\": \"findNotes\", \"version\": 6, \"params\": " + params + "}")
+                .getAsJsonObject();
+    }
+
+    @Test
+    public void pagingParametersAreOptional() throws Exception {
+        JsonObject raw = request("{\"query\": \"deck:current\"}");
+        assertEquals(0, Parser.getQueryOffset(raw));
+        assertEquals(-1, Parser.getQueryLimit(raw));
+        assertEquals(-1, Parser.getQueryAfterId(raw));
+
+        raw = request("{\"query\": \"deck:current\", \"offset\": null, \"limit\": null, \"afterId\": null}");
+        assertEquals(0, Parser.getQueryOffset(raw));
+        assertEquals(-1, Parser.getQueryLimit(raw));
+        assertEquals(-1, Parser.getQueryAfterId(raw));
+    }
+
+    @Test
+    public void readsPagingParameters() throws Exception {
+        JsonObject raw = request("{\"query\": \"deck:current\", \"offset\": 20, \"limit\": 10, \"afterId\": 1502298033753}");
+        assertEquals(20, Parser.getQueryOffset(raw));
+        assertEquals(10, Parser.getQueryLimit(raw));
+        assertEquals(1502298033753L, Parser.getQueryAfterId(raw));
+
+        raw = request("{\"query\": \"deck:current\", \"limit\": 0, \"afterId\": 0}");
+        assertEquals(0, Parser.getQueryLimit(raw));
+        assertEquals(0, Parser.getQueryAfterId(raw));
+    }
+
+    @Test
+    public void rejectsNegativeOffset() {
+        assertThrows(Exception.class, () -> Parser.getQueryOffset(request("{\"offset\": -1}")));
+    }
+
+    @Test
+    public void rejectsNegativeLimit() {
+        assertThrows(Exception.class, () -> Parser.getQueryLimit(request("{\"limit\": -5}")));
+    }
+
+    @Test
+    public void rejectsParametersThatArentNumbers() {
+        assertThrows(NumberFormatException.class, () -> Parser.getQueryOffset(request("{\"offset\": \"first\"}")));
+        assertThrows(NumberFormatException.class, () -> Parser.getQueryAfterId(request("{\"afterId\": \"last\"}")));
+    }
+}
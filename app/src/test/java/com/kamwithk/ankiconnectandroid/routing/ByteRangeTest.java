@@ -0,0 +1,79 @@
+package com.kamwithk.ankiconnectandroid.routing;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ByteRangeTest {
+    private static final long LENGTH = 2000;
+
+    @Test
+    public void parsesClosedRange() {
+        ByteRange range = ByteRange.parse("bytes=0-1023", LENGTH);
+        assertNotNull(range);
+        assertEquals(0, range.getStart());
+        assertEquals(1023, range.getEnd());
+        assertEquals(1024, range.getLength());
+        assertTrue(range.isSatisfiable(LENGTH));
+        assertEquals("bytes 0-1023/2000", range.toContentRange(LENGTH));
+    }
+
+    @Test
+    public void parsesOpenRange() {
+        ByteRange range = ByteRange.parse("bytes=100-", LENGTH);
+        assertNotNull(range);
+        assertEquals(100, range.getStart());
+        assertEquals(LENGTH - 1, range.getEnd());
+    }
+
+    @Test
+    public void limitsEndToLength() {
+        ByteRange range = ByteRange.parse("bytes=1500-99999", LENGTH);
+        assertNotNull(range);
+        assertEquals(1500, range.getStart());
+        assertEquals(LENGTH - 1, range.getEnd());
+        assertTrue(range.isSatisfiable(LENGTH));
+    }
+
+    @Test
+    public void parsesSuffixRange() {
+        ByteRange range = ByteRange.parse("bytes=-500", LENGTH);
+        assertNotNull(range);
+        assertEquals(1500, range.getStart());
+        assertEquals(LENGTH - 1, range.getEnd());
+
+        // a suffix longer than the file is the whole file
+        range = ByteRange.parse("bytes=-5000", LENGTH);
+        assertNotNull(range);
+        assertEquals(0, range.getStart());
+        assertEquals(LENGTH - 1, range.getEnd());
+    }
+
+    @Test
+    public void emptySuffixIsUnsatisfiable() {
+        ByteRange range = ByteRange.parse("bytes=-0", LENGTH);
+        assertNotNull(range);
+        assertFalse(range.isSatisfiable(LENGTH));
+    }
+
+    @Test
+    public void startAfterEndOfFileIsUnsatisfiable() {
+        ByteRange range = ByteRange.parse("bytes=2000-", LENGTH);
+        assertNotNull(range);
+        assertFalse(range.isSatisfiable(LENGTH));
+
+        range = ByteRange.parse("bytes=2500-3000", LENGTH);
+        assertNotNull(range);
+        assertFalse(range.isSatisfiable(LENGTH));
+    }
+
+    @Test
+    public void sendsWholeFileForOtherHeaders() {
+        assertNull(ByteRange.parse(null, LENGTH));
+        assertNull(ByteRange.parse("items=0-10", LENGTH));
+        assertNull(ByteRange.parse("bytes=0-10, 20-30", LENGTH));
+        assertNull(ByteRange.parse("bytes=10", LENGTH));
+        assertNull(ByteRange.parse("bytes=a-b", LENGTH));
+        assertNull(ByteRange.parse("bytes=10-5", LENGTH));
+    }
+}
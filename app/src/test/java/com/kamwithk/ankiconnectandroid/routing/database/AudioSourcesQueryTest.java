@@ -0,0 +1,58 @@
+package com.kamwithk.ankiconnectandroid.routing.database;
+
+import androidx.sqlite.db.SimpleSQLiteQuery;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class AudioSourcesQueryTest {
+    private static final List<String> SOURCES = List.of("nhk16", "forvo");
+    private static final List<String> USERS = List.of("speaker1", "speaker2", "speaker3");
+
+    @Test
+    public void reusesSqlForTheSameShape() {
+        for (boolean filterSources : new boolean[]{false, true}) {
+            for (boolean normalizedReadings : new boolean[]{false, true}) {
+                SimpleSQLiteQuery first = AudioSourcesQuery.create("日本", "にほん", SOURCES, USERS,
+                        filterSources, normalizedReadings);
+                SimpleSQLiteQuery second = AudioSourcesQuery.create("本", "ほん", List.of("jpod", "nhk16"),
+                        List.of("a", "b", "c"), filterSources, normalizedReadings);
+                // the same text, so that SQLite's statement cache returns the compiled statement
+                assertSame(first.getSql(), second.getSql());
+            }
+        }
+    }
+
+    @Test
+    public void usesDifferentSqlForDifferentShapes() {
+        String sql = AudioSourcesQuery.create("日本", "にほん", SOURCES, USERS, true, true).getSql();
+        assertNotEquals(sql, AudioSourcesQuery.create("日本", "にほん", SOURCES, USERS, false, true).getSql());
+        assertNotEquals(sql, AudioSourcesQuery.create("日本", "にほん", SOURCES, USERS, true, false).getSql());
+        assertNotEquals(sql, AudioSourcesQuery.create("日本", "にほん", List.of("nhk16"), USERS, true, true).getSql());
+        assertNotEquals(sql, AudioSourcesQuery.create("日本", "にほん", SOURCES, List.of(), true, true).getSql());
+    }
+
+    @Test
+    public void bindsAnArgumentForEveryPlaceholder() {
+        for (List<String> users : List.of(List.<String>of(), USERS)) {
+            for (boolean filterSources : new boolean[]{false, true}) {
+                for (boolean normalizedReadings : new boolean[]{false, true}) {
+                    SimpleSQLiteQuery query = AudioSourcesQuery.create("日本", "にほん", SOURCES, users,
+                            filterSources, normalizedReadings);
+                    long placeholders = query.getSql().chars().filter(c -> c == '?').count();
+                    assertEquals(query.getSql(), placeholders, query.getArgCount());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void filtersTheExactReadingCheckLikeTheLookup() {
+        String sql = AudioSourcesQuery.create("日本", "にほん", SOURCES, USERS, true, true).getSql();
+        assertTrue(sql, sql.contains("exact.source in (?,?)"));
+        assertTrue(sql, sql.contains("exact.speaker IS NULL or exact.speaker in ("));
+    }
+}
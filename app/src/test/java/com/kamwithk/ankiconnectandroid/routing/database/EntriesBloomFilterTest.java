@@ -0,0 +1,78 @@
+package com.kamwithk.ankiconnectandroid.routing.database;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class EntriesBloomFilterTest {
+    private static final int ENTRIES = 20000;
+    private static final double FPP = 0.01;
+    private static final long MAX_BYTES = 8 * 1024 * 1024;
+
+    private static EntriesBloomFilter createFilter() {
+        EntriesBloomFilter filter = EntriesBloomFilter.create(ENTRIES, FPP, MAX_BYTES);
+        for (int i = 0; i < ENTRIES; i++) {
+            filter.addEntry("expression" + i, i % 10 == 0 ? null : "reading" + i);
+        }
+        return filter;
+    }
+
+    @Test
+    public void hasNoFalseNegatives() {
+        EntriesBloomFilter filter = createFilter();
+        for (int i = 0; i < ENTRIES; i++) {
+            if (i % 10 == 0) {
+                // an entry without a reading matches every reading
+                assertTrue(filter.mightContain("expression" + i, "anything"));
+                assertTrue(filter.mightContain("expression" + i, null));
+            } else {
+                assertTrue(filter.mightContain("expression" + i, "reading" + i));
+            }
+        }
+    }
+
+    @Test
+    public void findsNormalizedReadings() {
+        EntriesBloomFilter filter = EntriesBloomFilter.create(1, FPP, MAX_BYTES);
+        filter.addEntry("珈琲", "コーヒー");
+        assertTrue(filter.mightContain("珈琲", "コーヒー"));
+        assertTrue(filter.mightContain("珈琲", "こおひい"));
+    }
+
+    @Test
+    public void hasFewFalsePositives() {
+        EntriesBloomFilter filter = createFilter();
+        int falsePositives = 0;
+        int lookups = 100000;
+        for (int i = 0; i < lookups; i++) {
+            if (filter.mightContain("missing" + i, "reading" + i)) {
+                falsePositives++;
+            }
+        }
+        // each lookup checks up to three keys, and each entry adds up to two
+        assertTrue("false positives: " + falsePositives, falsePositives < lookups * FPP * 3);
+    }
+
+    @Test
+    public void sizeMatchesFalsePositiveRate() {
+        EntriesBloomFilter filter = EntriesBloomFilter.create(ENTRIES, FPP, MAX_BYTES);
+        long n = ENTRIES * 2L;
+        // m = -n ln(p) / ln(2)^2 and k = m / n ln(2), rounded up to whole longs
+        long expectedBits = (long) Math.ceil(-n * Math.log(FPP) / (Math.log(2) * Math.log(2)));
+        assertTrue(filter.getNumBits() >= expectedBits);
+        assertTrue(filter.getNumBits() < expectedBits + Long.SIZE);
+        assertEquals(7, filter.getNumHashes());
+    }
+
+    @Test
+    public void sizeIsLimited() {
+        EntriesBloomFilter filter = EntriesBloomFilter.create(100_000_000L, FPP, 1024);
+        assertEquals(1024 * 8, filter.getNumBits());
+        assertTrue(filter.getNumHashes() >= 1);
+
+        // an empty database still gets a usable filter
+        filter = EntriesBloomFilter.create(0, FPP, MAX_BYTES);
+        assertTrue(filter.getNumBits() >= Long.SIZE);
+        assertFalse(filter.mightContain("expression", "reading"));
+    }
+}
@@ -0,0 +1,35 @@
+package com.kamwithk.ankiconnectandroid.routing.database;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ReadingNormalizerTest {
+    @Test
+    public void convertsKatakanaToHiragana() {
+        assertEquals("にほん", ReadingNormalizer.normalize("ニホン"));
+        assertEquals("ぁゖ", ReadingNormalizer.normalize("ァヶ"));
+    }
+
+    @Test
+    public void replacesLongVowelMark() {
+        assertEquals("こおひい", ReadingNormalizer.normalize("コーヒー"));
+        assertEquals("こおひい", ReadingNormalizer.normalize("こーひー"));
+        assertEquals("らあめん", ReadingNormalizer.normalize("ラーメン"));
+        assertEquals("すうぷ", ReadingNormalizer.normalize("スープ"));
+    }
+
+    @Test
+    public void keepsLongVowelMarkWithoutVowel() {
+        assertEquals("ー", ReadingNormalizer.normalize("ー"));
+        assertEquals("んー", ReadingNormalizer.normalize("ンー"));
+    }
+
+    @Test
+    public void keepsHiraganaAndOtherCharacters() {
+        assertEquals("にほん", ReadingNormalizer.normalize("にほん"));
+        assertEquals("日本", ReadingNormalizer.normalize("日本"));
+        assertEquals("", ReadingNormalizer.normalize(""));
+        assertNull(ReadingNormalizer.normalize(null));
+    }
+}
@@ -0,0 +1,106 @@
+package com.kamwithk.ankiconnectandroid.routing.localaudiosource;
+
+import com.kamwithk.ankiconnectandroid.routing.database.Entry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class NHK16AudioSourceTest {
+    private File mediaDir;
+
+    @Before
+    public void createMediaDir() throws IOException {
+        mediaDir = Files.createTempDirectory("nhk16").toFile();
+    }
+
+    @After
+    public void deleteMediaDir() {
+        deleteRecursively(mediaDir);
+    }
+
+    private List<Entry> scan() throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        new NHK16AudioSource().scanEntries(mediaDir, entries::add);
+        return entries;
+    }
+
+    private void write(String name, String contents) throws IOException {
+        Files.write(new File(mediaDir, name).toPath(), contents.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void readsEntriesJson() throws IOException {
+        Files.createDirectory(new File(mediaDir, "audio").toPath());
+        write("entries.json", "[" +
+                "{\"kana\": \"にほん\", \"kanji\": [\"日本\"], " +
+                "\"accents\": [{\"soundFile\": \"1.opus\", \"accent\": [{\"pitchAccent\": 2}]}], " +
+                "\"subentries\": [{\"head\": \"日本語\", \"kana\": \"にほんご\", \"accents\": [{\"soundFile\": \"2.opus\"}]}]}," +
+                "{\"kana\": \"あいさつ\", \"kanji\": [\"挨拶\", \"挨拶する\"], " +
+                "\"accents\": [{\"soundFile\": \"3.opus\", \"accent\": [{\"pitchAccent\": 1}]}]}," +
+                "{\"kana\": \"ほら\", \"accents\": [{\"soundFile\": \"4.opus\"}]}" +
+                "]");
+
+        List<Entry> entries = scan();
+        assertEquals(5, entries.size());
+
+        assertEntry(entries.get(0), "日本", "にほん", "にほん [2]", "audio/1.opus");
+        assertEntry(entries.get(1), "日本語", "にほんご", "にほんご", "audio/2.opus");
+        assertEntry(entries.get(2), "挨拶", "あいさつ", "あいさつ [1]", "audio/3.opus");
+        assertEntry(entries.get(3), "挨拶する", "あいさつ", "あいさつ [1]", "audio/3.opus");
+        // words without kanji are looked up by their kana
+        assertEntry(entries.get(4), "ほら", "ほら", "ほら", "audio/4.opus");
+        for (Entry entry : entries) {
+            assertEquals("nhk16", entry.source);
+            assertNull(entry.speaker);
+        }
+    }
+
+    @Test
+    public void readsIndexJsonWithoutEntriesJson() throws IOException {
+        write("index.json", "{\"meta\": {\"media_dir\": \"media\"}, " +
+                "\"headwords\": {\"日本\": [\"1.opus\"]}, " +
+                "\"files\": {\"1.opus\": {\"kana_reading\": \"にほん\", \"pitch_pattern\": \"にほ＼ん\"}}}");
+
+        List<Entry> entries = scan();
+        assertEquals(1, entries.size());
+        assertEntry(entries.get(0), "日本", "にほん", "にほ＼ん", "media/1.opus");
+    }
+
+    @Test
+    public void hasNoEntriesWithoutIndex() throws IOException {
+        assertTrue(scan().isEmpty());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsInvalidEntriesJson() throws IOException {
+        write("entries.json", "{\"kana\": \"にほん\"}");
+        scan();
+    }
+
+    private static void assertEntry(Entry entry, String expression, String reading, String display, String file) {
+        assertEquals(expression, entry.expression);
+        assertEquals(reading, entry.reading);
+        assertEquals(display, entry.display);
+        assertEquals(file, entry.file);
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}